@@ -0,0 +1,114 @@
+// Copyright 2013 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.android_webview;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.InputStream;
+
+/**
+ * A resource request that the client settles from another thread.
+ *
+ * The client claims a request by returning an instance from
+ * AwContentsClient.shouldInterceptRequestAsync(), and starts its lookup elsewhere. It then
+ * settles the request from any thread with {@link #complete} or {@link #decline}.
+ *
+ * The IO thread waits for that decision for at most the decision timeout, and other loads on
+ * the IO thread wait with it, so the timeout bounds how long one slow lookup can stall them. A
+ * declined request, or one not settled in time, is loaded from the network as if it had never
+ * been intercepted. Once the IO thread has stopped waiting, complete() and decline() return
+ * false.
+ */
+public class AsyncInterceptedRequest {
+    private static final String TAG = "AsyncInterceptedRequest";
+
+    /** How long the IO thread waits for a decision before loading from the network. */
+    public static final long DEFAULT_DECISION_TIMEOUT_MS = 100;
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_COMPLETED = 1;
+    private static final int STATE_DECLINED = 2;
+    private static final int STATE_TIMED_OUT = 3;
+
+    private final String mUrl;
+    private final Object mLock = new Object();
+    private long mDeadlineMs;
+    private int mState = STATE_PENDING;
+    private InterceptedRequestData mResponse;
+
+    /**
+     * @param url The url of the request being claimed.
+     */
+    public AsyncInterceptedRequest(String url) {
+        mUrl = url;
+        mDeadlineMs = SystemClock.uptimeMillis() + DEFAULT_DECISION_TIMEOUT_MS;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Changes how long, from the creation of the request, the client has to settle it.
+     */
+    public void setDecisionTimeoutMs(long timeoutMs) {
+        synchronized (mLock) {
+            mDeadlineMs = SystemClock.uptimeMillis() + timeoutMs;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Serves the request with the given response. Can be called from any thread.
+     * @return False if the request was already settled or timed out, in which case the caller
+     *         keeps ownership of the stream.
+     */
+    public boolean complete(String mimeType, String charset, InputStream data) {
+        synchronized (mLock) {
+            if (mState != STATE_PENDING) return false;
+            mResponse = new InterceptedRequestData(mimeType, charset, data);
+            mState = STATE_COMPLETED;
+            mLock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Lets the request go to the network. Can be called from any thread.
+     * @return False if the request was already settled or timed out.
+     */
+    public boolean decline() {
+        synchronized (mLock) {
+            if (mState != STATE_PENDING) return false;
+            mState = STATE_DECLINED;
+            mLock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Blocks the IO thread until the request is settled or the decision timeout passes.
+     * @return The response, or null to load the request from the network.
+     */
+    InterceptedRequestData awaitResponse() {
+        synchronized (mLock) {
+            long now = SystemClock.uptimeMillis();
+            while (mState == STATE_PENDING && now < mDeadlineMs) {
+                try {
+                    mLock.wait(mDeadlineMs - now);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                now = SystemClock.uptimeMillis();
+            }
+            if (mState == STATE_PENDING) {
+                Log.w(TAG, "No decision in time for intercepted request " + mUrl);
+                mState = STATE_TIMED_OUT;
+            }
+            return mResponse;
+        }
+    }
+}
@@ -129,6 +129,9 @@ public class AwContents {
 
     private DefaultVideoPosterRequestHandler mDefaultVideoPosterRequestHandler;
 
+    // Opt-in cache of intercepted responses, read on the IO thread.
+    private volatile InterceptedResponseCache mInterceptedResponseCache;
+
     private boolean mNewPictureInvalidationOnly;
 
     private Rect mGlobalVisibleBounds;
@@ -168,7 +171,25 @@ public class AwContents {
             interceptedRequestData = mDefaultVideoPosterRequestHandler.shouldInterceptRequest(url);
             if (interceptedRequestData != null) return interceptedRequestData;
 
-            interceptedRequestData = mContentsClient.shouldInterceptRequest(url);
+            InterceptedResponseCache cache = mInterceptedResponseCache;
+            int cacheMode = 0;
+            if (cache != null) {
+                cacheMode = getCacheMode();
+                interceptedRequestData = cache.get(url, cacheMode);
+                if (interceptedRequestData != null) return interceptedRequestData;
+            }
+
+            AsyncInterceptedRequest asyncRequest =
+                    mContentsClient.shouldInterceptRequestAsync(url, isMainFrame);
+            if (asyncRequest != null) {
+                interceptedRequestData = asyncRequest.awaitResponse();
+            } else {
+                interceptedRequestData = mContentsClient.shouldInterceptRequest(url);
+            }
+
+            if (cache != null && interceptedRequestData != null) {
+                interceptedRequestData = cache.put(url, cacheMode, interceptedRequestData);
+            }
 
             if (interceptedRequestData == null) {
                 mContentsClient.getCallbackHelper().postOnLoadResource(url);
@@ -418,6 +439,35 @@ public class AwContents {
         return mSettings;
     }
 
+    /**
+     * Batches onLoadResource callbacks, so a page with many subresources does not post one UI
+     * thread message per resource. Batches are delivered through
+     * AwContentsClient.onLoadResources(), in order with the other client callbacks.
+     * @param delayMs The longest time a resource waits before being reported, or a negative
+     *                value to report every resource as it loads.
+     */
+    public void setLoadResourceBatchDelayMs(long delayMs) {
+        mContentsClient.getCallbackHelper().setLoadResourceBatchDelayMs(delayMs);
+    }
+
+    /**
+     * Tells the WebView that AwContentsClient.getDefaultVideoPoster() now returns a different
+     * poster. The poster is otherwise fetched and encoded only once.
+     */
+    public void invalidateDefaultVideoPoster() {
+        mDefaultVideoPosterRequestHandler.invalidateDefaultVideoPoster();
+    }
+
+    /**
+     * Caches the responses returned by AwContentsClient.shouldInterceptRequest(), so that
+     * repeated requests for the same url are served from memory without calling the client
+     * again. A cache may be shared by several AwContents. Pass null to stop caching.
+     * Can be called from any thread.
+     */
+    public void setInterceptedResponseCache(InterceptedResponseCache cache) {
+        mInterceptedResponseCache = cache;
+    }
+
     public void setIoThreadClient(AwContentsIoThreadClient ioThreadClient) {
         mIoThreadClient = ioThreadClient;
         nativeSetIoThreadClient(mNativeAwContents, mIoThreadClient);
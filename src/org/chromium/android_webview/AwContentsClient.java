@@ -28,6 +28,8 @@ import org.chromium.content.browser.ContentViewCore;
 import org.chromium.content.browser.WebContentsObserverAndroid;
 import org.chromium.net.NetError;
 
+import java.util.List;
+
 /**
  * Base-class that an AwContents embedder derives from to receive callbacks.
  * This extends ContentViewClient, as in many cases we want to pass-thru ContentViewCore
@@ -149,12 +151,34 @@ public abstract class AwContentsClient {
 
     public abstract InterceptedRequestData shouldInterceptRequest(String url);
 
+    /**
+     * Called on the IO thread before shouldInterceptRequest(). Returning a request claims it:
+     * the client then settles it from any thread with AsyncInterceptedRequest.complete() or
+     * decline(), and the IO thread waits up to the request's decision timeout for that before
+     * loading it from the network. Returning null leaves the request to
+     * shouldInterceptRequest(). This must return quickly; the lookup itself should happen
+     * elsewhere.
+     */
+    public AsyncInterceptedRequest shouldInterceptRequestAsync(String url, boolean isMainFrame) {
+        return null;
+    }
+
     public abstract boolean shouldOverrideKeyEvent(KeyEvent event);
 
     public abstract boolean shouldOverrideUrlLoading(String url);
 
     public abstract void onLoadResource(String url);
 
+    /**
+     * Called instead of onLoadResource() when onLoadResource batching is enabled, with the
+     * urls in load order. The default implementation calls onLoadResource() for each url.
+     */
+    public void onLoadResources(List<String> urls) {
+        for (String url : urls) {
+            onLoadResource(url);
+        }
+    }
+
     public abstract void onUnhandledKeyEvent(KeyEvent event);
 
     public abstract boolean onConsoleMessage(ConsoleMessage consoleMessage);
@@ -10,11 +10,23 @@ import android.os.Message;
 
 import org.chromium.content.browser.ContentViewCore;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * This class is responsible for calling certain client callbacks on the UI thread.
  *
  * Most callbacks do no go through here, but get forwarded to AwContentsClient directly. The
  * messages processed here may originate from the IO or UI thread.
+ *
+ * onLoadResource can optionally be batched: urls are then appended to a lock-free queue and
+ * handed to AwContentsClient.onLoadResources() at most once per batching delay, instead of
+ * posting one message per resource. Every other callback first flushes the urls queued before
+ * it was posted, so the relative ordering of the callbacks is unchanged.
  */
 class AwContentsClientCallbackHelper {
 
@@ -70,12 +82,32 @@ class AwContentsClientCallbackHelper {
     private final static int MSG_ON_DOWNLOAD_START = 3;
     private final static int MSG_ON_RECEIVED_LOGIN_REQUEST = 4;
     private final static int MSG_ON_RECEIVED_ERROR = 5;
+    private final static int MSG_FLUSH_LOAD_RESOURCES = 6;
+
+    /** Disables onLoadResource batching. */
+    public final static long NO_BATCHING = -1;
 
     private final AwContentsClient mContentsClient;
 
+    // Batched onLoadResource urls. mQueuedLoadResources is incremented after each url is
+    // added, so it never exceeds the length of the queue; mDeliveredLoadResources is only
+    // used on the UI thread.
+    private final Queue<String> mPendingLoadResources = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger mQueuedLoadResources = new AtomicInteger();
+    private int mDeliveredLoadResources;
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private volatile long mLoadResourceBatchDelayMs = NO_BATCHING;
+
     private final Handler mHandler = new Handler(Looper.getMainLooper()) {
         @Override
         public void handleMessage(Message msg) {
+            if (msg.what == MSG_FLUSH_LOAD_RESOURCES) {
+                mFlushScheduled.set(false);
+                flushLoadResources(mQueuedLoadResources.get());
+                return;
+            }
+            // Deliver the batched urls that were queued before this message was posted.
+            flushLoadResources(msg.arg1);
             switch(msg.what) {
                 case MSG_ON_LOAD_RESOURCE: {
                     final String url = (String) msg.obj;
@@ -115,28 +147,65 @@ class AwContentsClientCallbackHelper {
         mContentsClient = contentsClient;
     }
 
+    /**
+     * Enables or disables onLoadResource batching. Can be called from any thread.
+     * @param delayMs The longest time a url waits before being delivered, or NO_BATCHING to
+     *                post every url as its own message.
+     */
+    public void setLoadResourceBatchDelayMs(long delayMs) {
+        mLoadResourceBatchDelayMs = delayMs;
+    }
+
     public void postOnLoadResource(String url) {
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_LOAD_RESOURCE, url));
+        long delayMs = mLoadResourceBatchDelayMs;
+        if (delayMs < 0) {
+            sendMessage(mHandler.obtainMessage(MSG_ON_LOAD_RESOURCE, url));
+            return;
+        }
+        mPendingLoadResources.add(url);
+        mQueuedLoadResources.incrementAndGet();
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH_LOAD_RESOURCES, delayMs);
+        }
     }
 
     public void postOnPageStarted(String url) {
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_PAGE_STARTED, url));
+        sendMessage(mHandler.obtainMessage(MSG_ON_PAGE_STARTED, url));
     }
 
     public void postOnDownloadStart(String url, String userAgent, String contentDisposition,
             String mimeType, long contentLength) {
         DownloadInfo info = new DownloadInfo(url, userAgent, contentDisposition, mimeType,
                 contentLength);
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_DOWNLOAD_START, info));
+        sendMessage(mHandler.obtainMessage(MSG_ON_DOWNLOAD_START, info));
     }
 
     public void postOnReceivedLoginRequest(String realm, String account, String args) {
         LoginRequestInfo info = new LoginRequestInfo(realm, account, args);
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_RECEIVED_LOGIN_REQUEST, info));
+        sendMessage(mHandler.obtainMessage(MSG_ON_RECEIVED_LOGIN_REQUEST, info));
     }
 
     public void postOnReceivedError(int errorCode, String description, String failingUrl) {
         OnReceivedErrorInfo info = new OnReceivedErrorInfo(errorCode, description, failingUrl);
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_RECEIVED_ERROR, info));
+        sendMessage(mHandler.obtainMessage(MSG_ON_RECEIVED_ERROR, info));
+    }
+
+    // Tags the message with the number of batched urls queued so far, so that the handler
+    // delivers exactly those first.
+    private void sendMessage(Message msg) {
+        msg.arg1 = mQueuedLoadResources.get();
+        mHandler.sendMessage(msg);
+    }
+
+    // Delivers batched urls until upTo urls have been delivered in total. Runs on the UI thread.
+    private void flushLoadResources(int upTo) {
+        // The counts may wrap around, so only their difference is meaningful.
+        if (upTo - mDeliveredLoadResources <= 0) return;
+        List<String> urls = new ArrayList<String>(upTo - mDeliveredLoadResources);
+        while (upTo - mDeliveredLoadResources > 0) {
+            urls.add(mPendingLoadResources.poll());
+            mDeliveredLoadResources++;
+        }
+        mContentsClient.onLoadResources(urls);
     }
 }
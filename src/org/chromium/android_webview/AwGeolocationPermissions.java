@@ -5,25 +5,42 @@
 package org.chromium.android_webview;
 
 import android.content.SharedPreferences;
+import android.util.LruCache;
 import android.webkit.ValueCallback;
 
 import org.chromium.base.ThreadUtils;
 import org.chromium.net.GURLUtils;
 
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class is used to manage permissions for the WebView's Geolocation JavaScript API.
  *
  * Callbacks are posted on the UI thread.
+ *
+ * The stored decisions are read from the SharedPreferences once, on first use, and kept in
+ * memory; changes update the memory table and are persisted with SharedPreferences.apply().
  */
 public final class AwGeolocationPermissions {
 
     private static final String PREF_PREFIX =
             AwGeolocationPermissions.class.getCanonicalName() + "%";
+
+    private static final int MAX_CACHED_ORIGINS = 64;
+
+    // Caches GURLUtils.getOrigin(), which is a JNI call. An empty string stands for a url
+    // without a valid origin. LruCache is thread-safe.
+    private static final LruCache<String, String> sOriginCache =
+            new LruCache<String, String>(MAX_CACHED_ORIGINS);
+
     private final SharedPreferences mSharedPreferences;
 
+    // The stored decisions keyed by origin, or null until loaded.
+    private volatile Map<String, Boolean> mDecisions;
+
     public AwGeolocationPermissions(SharedPreferences sharedPreferences) {
         mSharedPreferences = sharedPreferences;
     }
@@ -32,29 +49,24 @@ public final class AwGeolocationPermissions {
      * Set one origin to be allowed.
      */
     public void allow(String origin) {
-        String key = getOriginKey(origin);
-        if (key != null) {
-            mSharedPreferences.edit().putBoolean(key, true).apply();
-        }
+        setDecision(origin, true);
     }
 
     /**
      * Set one origin to be denied.
      */
     public void deny(String origin) {
-        String key = getOriginKey(origin);
-        if (key != null) {
-            mSharedPreferences.edit().putBoolean(key, false).apply();
-        }
+        setDecision(origin, false);
     }
 
     /**
      * Clear the stored permission for a particular origin.
      */
     public void clear(String origin) {
-        String key = getOriginKey(origin);
+        String key = getOrigin(origin);
         if (key != null) {
-            mSharedPreferences.edit().remove(key).apply();
+            getDecisions().remove(key);
+            mSharedPreferences.edit().remove(PREF_PREFIX + key).apply();
         }
     }
 
@@ -62,15 +74,15 @@ public final class AwGeolocationPermissions {
      * Clear stored permissions for all origins.
      */
     public void clearAll() {
+        Map<String, Boolean> decisions = getDecisions();
         SharedPreferences.Editor editor = null;
-        for (String name : mSharedPreferences.getAll().keySet()) {
-            if (name.startsWith(PREF_PREFIX)) {
-                if (editor == null) {
-                    editor = mSharedPreferences.edit();
-                }
-                editor.remove(name);
+        for (String key : decisions.keySet()) {
+            if (editor == null) {
+                editor = mSharedPreferences.edit();
             }
+            editor.remove(PREF_PREFIX + key);
         }
+        decisions.clear();
         if (editor != null) {
             editor.apply();
         }
@@ -80,14 +92,18 @@ public final class AwGeolocationPermissions {
      * Synchronous method to get if an origin is set to be allowed.
      */
     public boolean isOriginAllowed(String origin) {
-        return mSharedPreferences.getBoolean(getOriginKey(origin), false);
+        String key = getOrigin(origin);
+        if (key == null) return false;
+        Boolean allowed = getDecisions().get(key);
+        return allowed != null && allowed;
     }
 
     /**
      * Returns true if the origin is either set to allowed or denied.
      */
     public boolean hasOrigin(String origin) {
-        return mSharedPreferences.contains(getOriginKey(origin));
+        String key = getOrigin(origin);
+        return key != null && getDecisions().containsKey(key);
     }
 
     /**
@@ -107,12 +123,7 @@ public final class AwGeolocationPermissions {
      * Async method to get the domains currently allowed or denied.
      */
     public void getOrigins(final ValueCallback<Set<String>> callback) {
-        final Set<String> origins = new HashSet<String>();
-        for (String name : mSharedPreferences.getAll().keySet()) {
-            if (name.startsWith(PREF_PREFIX)) {
-                origins.add(name.substring(PREF_PREFIX.length()));
-            }
-        }
+        final Set<String> origins = new HashSet<String>(getDecisions().keySet());
         ThreadUtils.postOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -121,15 +132,46 @@ public final class AwGeolocationPermissions {
         });
     }
 
+    private void setDecision(String origin, boolean allow) {
+        String key = getOrigin(origin);
+        if (key != null) {
+            getDecisions().put(key, allow);
+            mSharedPreferences.edit().putBoolean(PREF_PREFIX + key, allow).apply();
+        }
+    }
+
     /**
-     * Get the domain of an URL using the GURL library.
+     * Returns the stored decisions, scanning the SharedPreferences for them on first use.
      */
-    private String getOriginKey(String url) {
-        String origin = GURLUtils.getOrigin(url);
-        if (origin.isEmpty()) {
-            return null;
+    private Map<String, Boolean> getDecisions() {
+        Map<String, Boolean> decisions = mDecisions;
+        if (decisions != null) return decisions;
+        synchronized (this) {
+            if (mDecisions == null) {
+                decisions = new ConcurrentHashMap<String, Boolean>();
+                for (Map.Entry<String, ?> entry : mSharedPreferences.getAll().entrySet()) {
+                    if (entry.getKey().startsWith(PREF_PREFIX)
+                            && entry.getValue() instanceof Boolean) {
+                        decisions.put(entry.getKey().substring(PREF_PREFIX.length()),
+                                (Boolean) entry.getValue());
+                    }
+                }
+                mDecisions = decisions;
+            }
+            return mDecisions;
         }
+    }
 
-        return PREF_PREFIX + origin;
+    /**
+     * Get the domain of an URL using the GURL library, or null if it has none.
+     */
+    private static String getOrigin(String url) {
+        if (url == null) return null;
+        String origin = sOriginCache.get(url);
+        if (origin == null) {
+            origin = GURLUtils.getOrigin(url);
+            sOriginCache.put(url, origin);
+        }
+        return origin.isEmpty() ? null : origin;
     }
 }
@@ -19,6 +19,10 @@ import org.chromium.base.JNINamespace;
 import org.chromium.base.ThreadUtils;
 import org.chromium.content.browser.ContentViewCore;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
 /**
  * Stores Android WebView specific settings that does not need to be synced to WebKit.
  * Use {@link org.chromium.content.browser.ContentSettings} for WebKit settings.
@@ -113,6 +117,17 @@ public class AwSettings {
 
     // A flag to avoid sending superfluous synchronization messages.
     private boolean mIsUpdateWebkitPrefsMessagePending = false;
+
+    // Native updates deferred while a batch is open, see beginBatchUpdate().
+    private static final int PENDING_WEBKIT_PREFERENCES = 1 << 0;
+    private static final int PENDING_USER_AGENT = 1 << 1;
+    private static final int PENDING_FORM_DATA = 1 << 2;
+    private static final int PENDING_INITIAL_PAGE_SCALE = 1 << 3;
+    private static final int PENDING_RESET_SCROLL_AND_SCALE = 1 << 4;
+    private static final int PENDING_MULTI_TOUCH_ZOOM = 1 << 5;
+    // Both guarded by mAwSettingsLock.
+    private int mBatchDepth = 0;
+    private int mPendingUpdates = 0;
     // Custom handler that queues messages to call native code on the UI thread.
     private final EventHandler mEventHandler;
 
@@ -146,6 +161,7 @@ public class AwSettings {
         private void updateWebkitPreferencesLocked() {
             assert Thread.holdsLock(mAwSettingsLock);
             if (mNativeAwSettings == 0) return;
+            if (deferUpdateLocked(PENDING_WEBKIT_PREFERENCES)) return;
             if (Looper.myLooper() == mHandler.getLooper()) {
                 updateWebkitPreferencesOnUiThreadLocked();
             } else {
@@ -215,6 +231,100 @@ public class AwSettings {
         }
     }
 
+    /**
+     * Starts a batch of settings changes. Until the matching {@link #commitBatchUpdate()} or
+     * {@link #commitBatchUpdateAsync()}, setters only update the Java side, and the changes are
+     * synced to native once, when the batch is committed. Batches may be nested; only the
+     * outermost commit syncs. A batch covers setter calls from all threads.
+     */
+    public void beginBatchUpdate() {
+        synchronized (mAwSettingsLock) {
+            mBatchDepth++;
+        }
+    }
+
+    /**
+     * Ends a batch started with {@link #beginBatchUpdate()} and blocks until the deferred
+     * changes have been synced to native.
+     */
+    public void commitBatchUpdate() {
+        Future<Void> commit = commitBatchUpdateAsync();
+        try {
+            commit.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Ends a batch started with {@link #beginBatchUpdate()} without waiting for the deferred
+     * changes to reach native.
+     * @return A future that completes once the changes have been synced on the UI thread.
+     */
+    public Future<Void> commitBatchUpdateAsync() {
+        final int updates;
+        synchronized (mAwSettingsLock) {
+            assert mBatchDepth > 0 : "commitBatchUpdate without beginBatchUpdate";
+            if (mBatchDepth > 0) mBatchDepth--;
+            updates = mBatchDepth == 0 ? mPendingUpdates : 0;
+            if (mBatchDepth == 0) mPendingUpdates = 0;
+        }
+        if (updates == 0) {
+            // Nothing to sync, e.g. a nested commit. Hand back a completed future rather than
+            // touching native from what may not be the UI thread.
+            FutureTask<Void> done = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null);
+            done.run();
+            return done;
+        }
+        return ThreadUtils.runOnUiThread(new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mAwSettingsLock) {
+                    applyUpdatesOnUiThreadLocked(updates);
+                }
+            }
+        }, null));
+    }
+
+    // Records a native update for the open batch, if any.
+    // @return Whether the update was deferred and must not be applied now.
+    private boolean deferUpdateLocked(int update) {
+        assert Thread.holdsLock(mAwSettingsLock);
+        if (mBatchDepth == 0) return false;
+        mPendingUpdates |= update;
+        return true;
+    }
+
+    private void applyUpdatesOnUiThreadLocked(int updates) {
+        ThreadUtils.assertOnUiThread();
+        if (mNativeAwSettings != 0) {
+            if ((updates & PENDING_WEBKIT_PREFERENCES) != 0) {
+                nativeUpdateWebkitPreferencesLocked(mNativeAwSettings);
+            }
+            if ((updates & PENDING_USER_AGENT) != 0) {
+                nativeUpdateUserAgentLocked(mNativeAwSettings);
+            }
+            if ((updates & PENDING_FORM_DATA) != 0) {
+                nativeUpdateFormDataPreferencesLocked(mNativeAwSettings);
+            }
+            if ((updates & PENDING_INITIAL_PAGE_SCALE) != 0) {
+                nativeUpdateInitialPageScaleLocked(mNativeAwSettings);
+            }
+            if ((updates & PENDING_RESET_SCROLL_AND_SCALE) != 0) {
+                nativeResetScrollAndScaleState(mNativeAwSettings);
+            }
+        }
+        if ((updates & PENDING_MULTI_TOUCH_ZOOM) != 0) {
+            mContentViewCore.updateMultiTouchZoomSupport(supportsMultiTouchZoomLocked());
+        }
+    }
+
     /**
      * See {@link android.webkit.WebSettings#setBlockNetworkLoads}.
      */
@@ -316,6 +426,7 @@ public class AwSettings {
         synchronized (mAwSettingsLock) {
             if (mInitialPageScalePercent != scaleInPercent) {
                 mInitialPageScalePercent = scaleInPercent;
+                if (deferUpdateLocked(PENDING_INITIAL_PAGE_SCALE)) return;
                 ThreadUtils.runOnUiThreadBlocking(new Runnable() {
                     @Override
                     public void run() {
@@ -369,6 +480,7 @@ public class AwSettings {
         synchronized (mAwSettingsLock) {
             if (mAutoCompleteEnabled != enable) {
                 mAutoCompleteEnabled = enable;
+                if (deferUpdateLocked(PENDING_FORM_DATA)) return;
                 ThreadUtils.runOnUiThreadBlocking(new Runnable() {
                     @Override
                     public void run() {
@@ -415,6 +527,7 @@ public class AwSettings {
                 mUserAgent = ua;
             }
             if (!oldUserAgent.equals(mUserAgent)) {
+                if (deferUpdateLocked(PENDING_USER_AGENT)) return;
                 ThreadUtils.runOnUiThreadBlocking(new Runnable() {
                     @Override
                     public void run() {
@@ -449,6 +562,7 @@ public class AwSettings {
             if (mLoadWithOverviewMode != overview) {
                 mLoadWithOverviewMode = overview;
                 mEventHandler.updateWebkitPreferencesLocked();
+                if (deferUpdateLocked(PENDING_RESET_SCROLL_AND_SCALE)) return;
                 ThreadUtils.runOnUiThreadBlocking(new Runnable() {
                     @Override
                     public void run() {
@@ -1242,6 +1356,7 @@ public class AwSettings {
     }
 
     private void updateMultiTouchZoomSupport(final boolean supportsMultiTouchZoom) {
+        if (deferUpdateLocked(PENDING_MULTI_TOUCH_ZOOM)) return;
         ThreadUtils.runOnUiThreadBlocking(new Runnable() {
             @Override
             public void run() {
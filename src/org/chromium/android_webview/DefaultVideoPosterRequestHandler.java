@@ -6,16 +6,16 @@ package org.chromium.android_webview;
 
 import android.graphics.Bitmap;
 import android.os.AsyncTask;
-import android.util.Log;
 
 import org.chromium.base.ThreadUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.InterruptedIOException;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * This class takes advantage of shouldInterceptRequest(), returns the bitmap from
@@ -23,55 +23,113 @@ import java.util.Random;
  *
  * The shouldInterceptRequest is used to get the default video poster, if the url is
  * the mDefaultVideoPosterURL.
+ *
+ * The poster is fetched from the client and PNG-encoded once, then served from memory to every
+ * later request until the client reports a new poster through invalidateDefaultVideoPoster().
+ * Requests made while the first encode is in flight share it.
  */
 public class DefaultVideoPosterRequestHandler {
-    private static InputStream getInputStream(final AwContentsClient contentClient)
-            throws IOException {
-        final PipedInputStream inputStream = new PipedInputStream();
-        final PipedOutputStream outputStream = new PipedOutputStream(inputStream);
-
-        // Send the request to UI thread to callback to the client, and if it provides a
-        // valid bitmap bounce on to the worker thread pool to compress it into the piped
-        // input/output stream.
-        ThreadUtils.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                final Bitmap defaultVideoPoster = contentClient.getDefaultVideoPoster();
-                if (defaultVideoPoster == null) {
-                    closeOutputStream(outputStream);
-                    return;
+    private static final byte[] NO_POSTER = new byte[0];
+
+    /**
+     * A single fetch and encode of the poster, shared by the requests that arrive meanwhile.
+     */
+    private class PosterLoad {
+        private final int mGeneration;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile byte[] mResult = NO_POSTER;
+
+        PosterLoad(int generation) {
+            mGeneration = generation;
+        }
+
+        // Sends the request to UI thread to callback to the client, and if it provides a
+        // valid bitmap bounces on to the worker thread pool to compress it. Every path ends in
+        // finish(), so readers never wait forever, even if the client or the encoder throws.
+        void start() {
+            ThreadUtils.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    boolean compressing = false;
+                    try {
+                        final Bitmap defaultVideoPoster = mContentClient.getDefaultVideoPoster();
+                        if (defaultVideoPoster == null) return;
+                        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                byte[] encodedPoster = NO_POSTER;
+                                try {
+                                    ByteArrayOutputStream outputStream =
+                                            new ByteArrayOutputStream();
+                                    defaultVideoPoster.compress(Bitmap.CompressFormat.PNG, 100,
+                                            outputStream);
+                                    encodedPoster = outputStream.toByteArray();
+                                } finally {
+                                    finish(encodedPoster);
+                                }
+                            }
+                        });
+                        compressing = true;
+                    } finally {
+                        if (!compressing) finish(NO_POSTER);
+                    }
                 }
-                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
-                    @Override
-                    public void run() {
+            });
+        }
+
+        // Only a successfully encoded poster is cached; after a failure or a null poster the
+        // next request asks the client again.
+        private void finish(byte[] encodedPoster) {
+            synchronized (mLock) {
+                if (mGeneration == mPosterGeneration && encodedPoster.length > 0) {
+                    DefaultVideoPosterRequestHandler.this.mEncodedPoster = encodedPoster;
+                }
+                if (mPendingLoad == this) mPendingLoad = null;
+            }
+            mResult = encodedPoster;
+            mDone.countDown();
+        }
+
+        InputStream newInputStream() {
+            return new InputStream() {
+                private InputStream mStream;
+
+                private InputStream getStream() throws IOException {
+                    if (mStream == null) {
                         try {
-                            defaultVideoPoster.compress(Bitmap.CompressFormat.PNG, 100,
-                                    outputStream);
-                            outputStream.flush();
-                        } catch (IOException e) {
-                            Log.e(TAG, null, e);
-                        } finally {
-                            closeOutputStream(outputStream);
+                            mDone.await();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
                         }
+                        mStream = new ByteArrayInputStream(mResult);
                     }
-                });
-            }
-        });
-        return inputStream;
-    }
+                    return mStream;
+                }
 
-    private static void closeOutputStream(OutputStream outputStream) {
-        try {
-            outputStream.close();
-        } catch (IOException e) {
-            Log.e(TAG, null, e);
+                @Override
+                public int read() throws IOException {
+                    return getStream().read();
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    return getStream().read(buffer, offset, length);
+                }
+            };
         }
     }
 
-    private static final String TAG = "DefaultVideoPosterRequestHandler";
     private String mDefaultVideoPosterURL;
     private AwContentsClient mContentClient;
 
+    private final Object mLock = new Object();
+    // The encoded poster, or null if it has to be fetched from the client.
+    private byte[] mEncodedPoster;
+    private PosterLoad mPendingLoad;
+    // Bumped whenever the poster is invalidated, so that a load which started before does
+    // not cache a stale poster.
+    private int mPosterGeneration;
+
     public DefaultVideoPosterRequestHandler(AwContentsClient contentClient) {
         mDefaultVideoPosterURL = GenerateDefaulVideoPosterURL();
         mContentClient = contentClient;
@@ -87,11 +145,31 @@ public class DefaultVideoPosterRequestHandler {
     public InterceptedRequestData shouldInterceptRequest(final String url) {
         if (!mDefaultVideoPosterURL.equals(url)) return null;
 
-        try {
-            return new InterceptedRequestData("image/png", null, getInputStream(mContentClient));
-        } catch (IOException e) {
-            Log.e(TAG, null, e);
-            return null;
+        PosterLoad load;
+        synchronized (mLock) {
+            if (mEncodedPoster != null) {
+                return new InterceptedRequestData("image/png", null,
+                        new ByteArrayInputStream(mEncodedPoster));
+            }
+            load = mPendingLoad;
+            if (load == null) {
+                load = new PosterLoad(mPosterGeneration);
+                mPendingLoad = load;
+                load.start();
+            }
+        }
+        return new InterceptedRequestData("image/png", null, load.newInputStream());
+    }
+
+    /**
+     * Drops the cached poster, so that the next request fetches it from the client again.
+     * Can be called from any thread.
+     */
+    public void invalidateDefaultVideoPoster() {
+        synchronized (mLock) {
+            mPosterGeneration++;
+            mEncodedPoster = null;
+            mPendingLoad = null;
         }
     }
 
@@ -11,6 +11,16 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * This database is used to support WebView's setHttpAuthUsernamePassword and
  * getHttpAuthUsernamePassword methods, and WebViewDatabase's clearHttpAuthUsernamePassword and
@@ -20,11 +30,11 @@ import android.util.Log;
  * layer, primarily for ease of testing. To line up with the classic implementation and behavior,
  * there is no specific handling and reporting when SQL errors occur.
  *
- * Note on thread-safety: As per the classic implementation, most API functions have thread safety
- * provided by the underlying SQLiteDatabase instance. The exception is database opening: this
- * is handled in the dedicated background thread, which also provides a performance gain
- * if triggered early on (e.g. as a side effect of CookieSyncManager.createInstance() call),
- * sufficiently in advance of the first blocking usage of the API.
+ * The database is opened lazily, on first use, on a background executor shared by all instances,
+ * and its contents are loaded into an in-memory map. Lookups are answered from the map, and
+ * writes update the map at once and are persisted asynchronously, in batches, by the same
+ * executor. All public methods are thread-safe; only the first lookup after opening may have to
+ * wait for the database.
  */
 public class HttpAuthDatabase {
 
@@ -40,10 +50,6 @@ public class HttpAuthDatabase {
 
     private static final String ID_COL = "_id";
 
-    private static final String[] ID_PROJECTION = new String[] {
-        ID_COL
-    };
-
     // column id strings for "httpauth" table
     private static final String HTTPAUTH_TABLE_NAME = "httpauth";
     private static final String HTTPAUTH_HOST_COL = "host";
@@ -51,25 +57,82 @@ public class HttpAuthDatabase {
     private static final String HTTPAUTH_USERNAME_COL = "username";
     private static final String HTTPAUTH_PASSWORD_COL = "password";
 
+    /**
+     * Opens the databases and runs their writes. Being single-threaded, it also keeps the
+     * writes of each database in order.
+     */
+    private static final Executor sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HttpAuthDatabase");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * A pending write. A null host stands for clearing all the credentials.
+     */
+    private static class PendingWrite {
+        final String mHost;
+        final String mRealm;
+        final String mUsername;
+        final String mPassword;
+
+        PendingWrite(String host, String realm, String username, String password) {
+            mHost = host;
+            mRealm = realm;
+            mUsername = username;
+            mPassword = password;
+        }
+    }
+
+    private final Context mContext;
+    private final String mDatabaseFile;
+
     /**
      * Initially false until the background thread completes.
      */
     private boolean mInitialized = false;
+    private boolean mInitStarted = false;
+
+    // The credentials keyed by host and realm, as username and password pairs. Kept up to date
+    // by every write, and filled from the database once it is open.
+    private final ConcurrentHashMap<String, String[]> mCredentials =
+            new ConcurrentHashMap<String, String[]>();
+
+    // Writes waiting to be persisted, in order, and whether a flush is queued on sExecutor.
+    private final Queue<PendingWrite> mPendingWrites = new ConcurrentLinkedQueue<PendingWrite>();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    // Held while updating mCredentials and queueing the matching write, so that the cache and
+    // the order of the writes in mPendingWrites always agree.
+    private final Object mWriteLock = new Object();
 
     /**
-     * Create an instance of HttpAuthDatabase for the named file, and kick-off background
-     * initialization of that database.
+     * Create an instance of HttpAuthDatabase for the named file. The database is opened in the
+     * background on first use.
      *
      * @param context the Context to use for opening the database
      * @param databaseFile Name of the file to be initialized.
      */
-    public HttpAuthDatabase(final Context context, final String databaseFile) {
-        new Thread() {
+    public HttpAuthDatabase(Context context, String databaseFile) {
+        mContext = context;
+        mDatabaseFile = databaseFile;
+    }
+
+    /**
+     * Queues the opening of the database on sExecutor, if not done yet.
+     */
+    private synchronized void startInit() {
+        if (mInitStarted) return;
+        mInitStarted = true;
+        sExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                initOnBackgroundThread(context, databaseFile);
+                initOnBackgroundThread(mContext, mDatabaseFile);
             }
-        }.start();
+        });
     }
 
     /**
@@ -95,6 +158,7 @@ public class HttpAuthDatabase {
         }
 
         initDatabase(context, databaseFile);
+        if (mDatabase != null) loadCredentials();
 
         // Thread done, notify.
         mInitialized = true;
@@ -147,12 +211,36 @@ public class HttpAuthDatabase {
     }
 
     /**
-     * Waits for the background initialization thread to complete and check the database creation
-     * status.
+     * Fills mCredentials with the contents of the database. Entries written in the meantime are
+     * newer and are kept.
+     */
+    private void loadCredentials() {
+        final String[] columns = new String[] {
+            HTTPAUTH_HOST_COL, HTTPAUTH_REALM_COL, HTTPAUTH_USERNAME_COL, HTTPAUTH_PASSWORD_COL
+        };
+        Cursor cursor = null;
+        try {
+            cursor = mDatabase.query(HTTPAUTH_TABLE_NAME, columns, null, null, null, null, null);
+            while (cursor.moveToNext()) {
+                String key = getKey(cursor.getString(0), cursor.getString(1));
+                String[] credentials = new String[] { cursor.getString(2), cursor.getString(3) };
+                mCredentials.putIfAbsent(key, credentials);
+            }
+        } catch (IllegalStateException e) {
+            Log.e(LOGTAG, "loadCredentials", e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    /**
+     * Starts the background initialization if needed, waits for it to complete and check the
+     * database creation status.
      *
      * @return true if the database was initialized, false otherwise
      */
     private boolean waitForInit() {
+        startInit();
         synchronized (this) {
             while (!mInitialized) {
                 try {
@@ -176,16 +264,14 @@ public class HttpAuthDatabase {
      */
     public void setHttpAuthUsernamePassword(String host, String realm, String username,
             String password) {
-        if (host == null || realm == null || !waitForInit()) {
+        if (host == null || realm == null) {
             return;
         }
 
-        final ContentValues c = new ContentValues();
-        c.put(HTTPAUTH_HOST_COL, host);
-        c.put(HTTPAUTH_REALM_COL, realm);
-        c.put(HTTPAUTH_USERNAME_COL, username);
-        c.put(HTTPAUTH_PASSWORD_COL, password);
-        mDatabase.insert(HTTPAUTH_TABLE_NAME, HTTPAUTH_HOST_COL, c);
+        synchronized (mWriteLock) {
+            mCredentials.put(getKey(host, realm), new String[] { username, password });
+            queueWrite(new PendingWrite(host, realm, username, password));
+        }
     }
 
     /**
@@ -199,33 +285,19 @@ public class HttpAuthDatabase {
      *         String[1] is password.  Null is returned if it can't find anything.
      */
     public String[] getHttpAuthUsernamePassword(String host, String realm) {
-        if (host == null || realm == null || !waitForInit()){
+        if (host == null || realm == null) {
             return null;
         }
 
-        final String[] columns = new String[] {
-            HTTPAUTH_USERNAME_COL, HTTPAUTH_PASSWORD_COL
-        };
-        final String selection = "(" + HTTPAUTH_HOST_COL + " == ?) AND " +
-                "(" + HTTPAUTH_REALM_COL + " == ?)";
-
-        String[] ret = null;
-        Cursor cursor = null;
-        try {
-            cursor = mDatabase.query(HTTPAUTH_TABLE_NAME, columns, selection,
-                    new String[] { host, realm }, null, null, null);
-            if (cursor.moveToFirst()) {
-                ret = new String[] {
-                        cursor.getString(cursor.getColumnIndex(HTTPAUTH_USERNAME_COL)),
-                        cursor.getString(cursor.getColumnIndex(HTTPAUTH_PASSWORD_COL)),
-                };
-            }
-        } catch (IllegalStateException e) {
-            Log.e(LOGTAG, "getHttpAuthUsernamePassword", e);
-        } finally {
-            if (cursor != null) cursor.close();
+        String key = getKey(host, realm);
+        String[] credentials = mCredentials.get(key);
+        if (credentials == null) {
+            // Until the database is loaded a miss is not conclusive.
+            if (!waitForInit()) return null;
+            credentials = mCredentials.get(key);
+            if (credentials == null) return null;
         }
-        return ret;
+        return credentials.clone();
     }
 
     /**
@@ -237,28 +309,72 @@ public class HttpAuthDatabase {
         if (!waitForInit()) {
             return false;
         }
-
-        Cursor cursor = null;
-        boolean ret = false;
-        try {
-            cursor = mDatabase.query(HTTPAUTH_TABLE_NAME, ID_PROJECTION, null, null, null, null,
-                    null);
-            ret = cursor.moveToFirst();
-        } catch (IllegalStateException e) {
-            Log.e(LOGTAG, "hasEntries", e);
-        } finally {
-            if (cursor != null) cursor.close();
-        }
-        return ret;
+        return !mCredentials.isEmpty();
     }
 
     /**
      * Clears the HTTP authentication password database.
      */
     public void clearHttpAuthUsernamePassword() {
+        // Wait for the stored credentials to be loaded, so that they cannot reappear in
+        // mCredentials after it is cleared.
         if (!waitForInit()) {
             return;
         }
-        mDatabase.delete(HTTPAUTH_TABLE_NAME, null, null);
+        synchronized (mWriteLock) {
+            mCredentials.clear();
+            queueWrite(new PendingWrite(null, null, null, null));
+        }
+    }
+
+    private void queueWrite(PendingWrite write) {
+        startInit();
+        mPendingWrites.add(write);
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushPendingWrites();
+                }
+            });
+        }
+    }
+
+    /**
+     * Persists all the pending writes in a single transaction. Runs on sExecutor, after the
+     * database has been opened.
+     */
+    private void flushPendingWrites() {
+        mFlushScheduled.set(false);
+        List<PendingWrite> writes = new ArrayList<PendingWrite>();
+        PendingWrite write;
+        while ((write = mPendingWrites.poll()) != null) {
+            writes.add(write);
+        }
+        if (writes.isEmpty() || mDatabase == null) return;
+
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            for (PendingWrite pending : writes) {
+                if (pending.mHost == null) {
+                    mDatabase.delete(HTTPAUTH_TABLE_NAME, null, null);
+                    continue;
+                }
+                final ContentValues c = new ContentValues();
+                c.put(HTTPAUTH_HOST_COL, pending.mHost);
+                c.put(HTTPAUTH_REALM_COL, pending.mRealm);
+                c.put(HTTPAUTH_USERNAME_COL, pending.mUsername);
+                c.put(HTTPAUTH_PASSWORD_COL, pending.mPassword);
+                mDatabase.insert(HTTPAUTH_TABLE_NAME, HTTPAUTH_HOST_COL, c);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private static String getKey(String host, String realm) {
+        // Host names cannot contain a NUL, so the key is unambiguous.
+        return host + '\0' + realm;
     }
 }
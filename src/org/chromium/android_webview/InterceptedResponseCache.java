@@ -0,0 +1,209 @@
+// Copyright 2013 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.android_webview;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, in-memory LRU cache of the responses returned by
+ * AwContentsClient.shouldInterceptRequest().
+ *
+ * Responses are keyed by URL and cache mode and hold the mime type, the charset and the body
+ * bytes. Bodies are copied as the native side reads them and are cached once read in full. A
+ * cached response is handed out as a new {@link InterceptedRequestData} streaming from
+ * the shared bytes, so a repeated interception skips both the client callback and whatever I/O
+ * the client did to produce the body. The cache is opt-in and may be shared by several
+ * {@link AwContents}, see {@link AwContents#setInterceptedResponseCache}.
+ *
+ * All methods are thread-safe.
+ */
+public class InterceptedResponseCache {
+    private static final String TAG = "InterceptedResponseCache";
+
+    private static class CachedResponse {
+        final String mMimeType;
+        final String mCharset;
+        final byte[] mData;
+
+        CachedResponse(String mimeType, String charset, byte[] data) {
+            mMimeType = mimeType;
+            mCharset = charset;
+            mData = data;
+        }
+
+        InterceptedRequestData toRequestData() {
+            return new InterceptedRequestData(mMimeType, mCharset,
+                    new ByteArrayInputStream(mData));
+        }
+    }
+
+    private final int mMaxEntryBytes;
+    private final AtomicLong mEvictedBytes = new AtomicLong();
+    private final AtomicLong mOversizedCount = new AtomicLong();
+    private final LruCache<String, CachedResponse> mCache;
+
+    /**
+     * @param maxBytes The total size of the cached bodies, in bytes.
+     * @param maxEntryBytes Bodies larger than this are passed through uncached.
+     */
+    public InterceptedResponseCache(int maxBytes, int maxEntryBytes) {
+        if (maxEntryBytes > maxBytes) {
+            throw new IllegalArgumentException("maxEntryBytes must not exceed maxBytes");
+        }
+        mMaxEntryBytes = maxEntryBytes;
+        mCache = new LruCache<String, CachedResponse>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, CachedResponse value) {
+                return value.mData.length;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, CachedResponse oldValue,
+                    CachedResponse newValue) {
+                if (evicted) mEvictedBytes.addAndGet(oldValue.mData.length);
+            }
+        };
+    }
+
+    /**
+     * @return A new response streaming the cached body, or null if the url is not cached for
+     *         the given cache mode.
+     */
+    public InterceptedRequestData get(String url, int cacheMode) {
+        CachedResponse response = mCache.get(getKey(url, cacheMode));
+        return response != null ? response.toRequestData() : null;
+    }
+
+    /**
+     * Wraps a response returned by the client so that its body is cached as the native side
+     * reads it. Nothing is read here, so the IO thread is not delayed. The response is cached
+     * once its body has been read to the end; it is dropped if the body is closed early, fails
+     * or grows over the entry size limit. The caller must return the response this method
+     * returns instead of the one passed in.
+     */
+    public InterceptedRequestData put(String url, int cacheMode,
+            InterceptedRequestData requestData) {
+        InputStream data = requestData.getData();
+        if (data == null) return requestData;
+        return new InterceptedRequestData(requestData.getMimeType(), requestData.getCharset(),
+                new CachingInputStream(getKey(url, cacheMode), requestData.getMimeType(),
+                        requestData.getCharset(), data));
+    }
+
+    /**
+     * Drops all cached responses. They are counted as evictions.
+     */
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    /** @return The number of lookups that found a cached response. */
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    /** @return The number of lookups that found no cached response. */
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    /** @return The number of responses evicted to make room for newer ones. */
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    /** @return The total size of the bodies evicted to make room for newer ones, in bytes. */
+    public long getEvictedBytes() {
+        return mEvictedBytes.get();
+    }
+
+    /** @return The number of responses that were too large to be cached. */
+    public long getOversizedCount() {
+        return mOversizedCount.get();
+    }
+
+    /** @return The total size of the cached bodies, in bytes. */
+    public int getSize() {
+        return mCache.size();
+    }
+
+    /** @return The maximum total size of the cached bodies, in bytes. */
+    public int getMaxSize() {
+        return mCache.maxSize();
+    }
+
+    private static String getKey(String url, int cacheMode) {
+        return cacheMode + " " + url;
+    }
+
+    /**
+     * Copies the body into memory while the native side reads it on its worker thread, and
+     * caches it at the end of the stream.
+     */
+    private class CachingInputStream extends InputStream {
+        private final String mKey;
+        private final String mMimeType;
+        private final String mCharset;
+        private final InputStream mStream;
+        // Null once the body turned out not to be cacheable.
+        private ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+        private final byte[] mSingleByte = new byte[1];
+
+        CachingInputStream(String key, String mimeType, String charset, InputStream stream) {
+            mKey = key;
+            mMimeType = mimeType;
+            mCharset = charset;
+            mStream = stream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(mSingleByte, 0, 1) == -1 ? -1 : mSingleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read;
+            try {
+                read = mStream.read(buffer, offset, length);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read intercepted response for " + mKey, e);
+                mBody = null;
+                throw e;
+            }
+            if (mBody == null) return read;
+            if (read == -1) {
+                mCache.put(mKey, new CachedResponse(mMimeType, mCharset, mBody.toByteArray()));
+                mBody = null;
+            } else if (mBody.size() + read > mMaxEntryBytes) {
+                mOversizedCount.incrementAndGet();
+                mBody = null;
+            } else {
+                mBody.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mStream.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // A body closed before its end is not cached.
+            mBody = null;
+            mStream.close();
+        }
+    }
+
+}
@@ -90,6 +90,10 @@ public class ChildProcessConnection implements ServiceConnection {
     private ConnectionParams mConnectionParams;
     private boolean mIsBound;
 
+    // Timestamps of the launch stages, reported to ChildProcessLaunchStats by the launcher.
+    private final ChildProcessLaunchStats.LaunchTimings mLaunchTimings =
+            new ChildProcessLaunchStats.LaunchTimings();
+
     ChildProcessConnection(Context context, int number, boolean inSandbox,
             ChildProcessConnection.DeathCallback deathCallback,
             Class<? extends ChildProcessService> serviceClass) {
@@ -108,6 +112,10 @@ public class ChildProcessConnection implements ServiceConnection {
         return mInSandbox;
     }
 
+    ChildProcessLaunchStats.LaunchTimings getLaunchTimings() {
+        return mLaunchTimings;
+    }
+
     IChildProcessService getService() {
         synchronized(mUiThreadLock) {
             return mService;
@@ -140,7 +148,9 @@ public class ChildProcessConnection implements ServiceConnection {
                 intent.putExtra(EXTRA_COMMAND_LINE, commandLine);
             }
 
+            mLaunchTimings.onBindStarted();
             mIsBound = mContext.bindService(intent, this, Context.BIND_AUTO_CREATE);
+            mLaunchTimings.onBindFinished();
             if (!mIsBound) {
                 onBindFailed();
             }
@@ -199,6 +209,7 @@ public class ChildProcessConnection implements ServiceConnection {
     public void onServiceConnected(ComponentName className, IBinder service) {
         synchronized(mUiThreadLock) {
             TraceEvent.begin();
+            mLaunchTimings.onServiceConnected();
             mServiceConnectComplete = true;
             mService = IChildProcessService.Stub.asInterface(service);
             if (mConnectionParams != null) {
@@ -264,7 +275,9 @@ public class ChildProcessConnection implements ServiceConnection {
             bundle.putLong(EXTRA_CPU_FEATURES, CpuFeatures.getMask());
 
             try {
+                mLaunchTimings.onSetupStarted();
                 mPID = mService.setupConnection(bundle, mConnectionParams.mCallback);
+                mLaunchTimings.onSetupFinished();
             } catch (android.os.RemoteException re) {
                 Log.e(TAG, "Failed to setup connection.", re);
             }
@@ -0,0 +1,206 @@
+// Copyright (c) 2013 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.content.browser;
+
+import org.chromium.content.common.LatencyHistogram;
+import org.chromium.content.common.PerfTraceEvent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects timing data about child process launches made through {@link ChildProcessLauncher}.
+ *
+ * Each launch is broken down into the stages below, all measured in microseconds:
+ * <ul>
+ * <li>bind: the duration of the bindService() call made by ChildProcessConnection.bind().</li>
+ * <li>connect: from the later of the launch request and the end of bind until
+ *     onServiceConnected(). This is zero when a spare connection was already connected.</li>
+ * <li>setup: the duration of the setupConnection() IPC in doConnectionSetup().</li>
+ * <li>total: from ChildProcessLauncher.start() until the pid callback runs.</li>
+ * </ul>
+ * The histograms are lock-free and can be queried from any thread. A summary is added to the
+ * {@link PerfTraceEvent} output whenever it is dumped.
+ */
+public class ChildProcessLaunchStats {
+    /** The launch stages tracked by separate histograms. */
+    public static final int STAGE_BIND = 0;
+    public static final int STAGE_CONNECT = 1;
+    public static final int STAGE_SETUP = 2;
+    public static final int STAGE_TOTAL = 3;
+    private static final int STAGE_COUNT = 4;
+    private static final String[] STAGE_NAMES = { "bind", "connect", "setup", "total" };
+
+    private static final String SUMMARY_TRACE_NAME = "ChildProcessLaunch";
+
+    /**
+     * The timestamps of a single launch. Each timestamp is written by one thread only, at a
+     * well defined point of the launch, and read once the pid callback runs.
+     */
+    static class LaunchTimings {
+        private volatile long mBindStartNanos;
+        private volatile long mBindEndNanos;
+        private volatile long mConnectedNanos;
+        private volatile long mSetupStartNanos;
+        private volatile long mSetupEndNanos;
+        private volatile long mLaunchStartNanos;
+        private volatile boolean mUsedSpareConnection;
+        private volatile String mProcessType;
+
+        void onBindStarted() {
+            mBindStartNanos = System.nanoTime();
+        }
+
+        void onBindFinished() {
+            mBindEndNanos = System.nanoTime();
+        }
+
+        void onServiceConnected() {
+            mConnectedNanos = System.nanoTime();
+        }
+
+        void onSetupStarted() {
+            mSetupStartNanos = System.nanoTime();
+        }
+
+        void onSetupFinished() {
+            mSetupEndNanos = System.nanoTime();
+        }
+
+        void onLaunchStarted(long launchStartNanos, String processType,
+                boolean usedSpareConnection) {
+            mLaunchStartNanos = launchStartNanos;
+            mProcessType = processType;
+            mUsedSpareConnection = usedSpareConnection;
+        }
+    }
+
+    private static final ChildProcessLaunchStats sInstance = new ChildProcessLaunchStats();
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_COUNT];
+    private final AtomicLong mSpareHits = new AtomicLong();
+    private final AtomicLong mSpareMisses = new AtomicLong();
+    // Launch counts keyed by the value of the child's --type switch.
+    private final ConcurrentHashMap<String, AtomicLong> mLaunchesByType =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    private ChildProcessLaunchStats() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+        PerfTraceEvent.addSummaryProvider(new PerfTraceEvent.SummaryProvider() {
+            @Override
+            public String getSummaryName() {
+                return SUMMARY_TRACE_NAME;
+            }
+
+            @Override
+            public Map<String, Long> getSummaryValues() {
+                // Processes that never launch a child would only add zeroes to every dump.
+                if (mHistograms[STAGE_TOTAL].getCount() == 0) return null;
+                return getSummary();
+            }
+        });
+    }
+
+    /**
+     * @return The statistics shared by all child process launches.
+     */
+    public static ChildProcessLaunchStats getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param stage One of the STAGE_* constants.
+     * @return The histogram of the given stage's latency, in microseconds.
+     */
+    public LatencyHistogram getHistogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    /**
+     * @return The number of launches that used a pre-bound spare connection.
+     */
+    public long getSpareConnectionHits() {
+        return mSpareHits.get();
+    }
+
+    /**
+     * @return The number of launches that had to bind a new connection.
+     */
+    public long getSpareConnectionMisses() {
+        return mSpareMisses.get();
+    }
+
+    /**
+     * Drops all recorded launches.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mSpareHits.set(0);
+        mSpareMisses.set(0);
+        mLaunchesByType.clear();
+    }
+
+    /**
+     * Returns the current statistics as a flat map, e.g. "total_p95_us" or "spare_hits".
+     */
+    public Map<String, Long> getSummary() {
+        Map<String, Long> summary = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            String prefix = STAGE_NAMES[i];
+            summary.put(prefix + "_count", histogram.getCount());
+            summary.put(prefix + "_mean_us", histogram.getMean());
+            summary.put(prefix + "_p50_us", histogram.getPercentile(50));
+            summary.put(prefix + "_p95_us", histogram.getPercentile(95));
+            summary.put(prefix + "_max_us", histogram.getMax());
+        }
+        summary.put("spare_hits", mSpareHits.get());
+        summary.put("spare_misses", mSpareMisses.get());
+        for (Map.Entry<String, AtomicLong> entry : mLaunchesByType.entrySet()) {
+            summary.put("launches_" + entry.getKey(), entry.getValue().get());
+        }
+        return summary;
+    }
+
+    /**
+     * Records a finished launch. Called when the pid callback runs.
+     */
+    void recordLaunch(LaunchTimings timings) {
+        long now = System.nanoTime();
+        long launchStart = timings.mLaunchStartNanos;
+        if (launchStart == 0) return;
+
+        if (timings.mBindEndNanos != 0) {
+            recordNanos(STAGE_BIND, timings.mBindEndNanos - timings.mBindStartNanos);
+        }
+        if (timings.mConnectedNanos != 0) {
+            long connectStart = Math.max(launchStart, timings.mBindEndNanos);
+            recordNanos(STAGE_CONNECT, Math.max(0, timings.mConnectedNanos - connectStart));
+        }
+        if (timings.mSetupEndNanos != 0) {
+            recordNanos(STAGE_SETUP, timings.mSetupEndNanos - timings.mSetupStartNanos);
+        }
+        recordNanos(STAGE_TOTAL, now - launchStart);
+
+        (timings.mUsedSpareConnection ? mSpareHits : mSpareMisses).incrementAndGet();
+        String processType = timings.mProcessType != null ? timings.mProcessType : "unknown";
+        AtomicLong launches = mLaunchesByType.get(processType);
+        if (launches == null) {
+            mLaunchesByType.putIfAbsent(processType, new AtomicLong());
+            launches = mLaunchesByType.get(processType);
+        }
+        launches.incrementAndGet();
+    }
+
+    private void recordNanos(int stage, long nanos) {
+        mHistograms[stage].record(nanos / 1000);
+    }
+}
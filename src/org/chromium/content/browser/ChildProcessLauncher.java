@@ -4,10 +4,14 @@
 
 package org.chromium.content.browser;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.os.AsyncTask;
 import android.util.Log;
 import android.view.Surface;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -174,8 +178,35 @@ public class ChildProcessLauncher {
     private static Map<Integer, ChildProcessConnection> mServiceMap =
             new ConcurrentHashMap<Integer, ChildProcessConnection>();
 
-    // A pre-allocated and pre-bound connection ready for connection setup, or null.
-    static ChildProcessConnection mSpareSandboxedConnection = null;
+    // Pre-allocated and pre-bound connections ready for connection setup. Each pool holds at most
+    // the matching warm pool size. Guarded by ChildProcessLauncher.class.
+    private static final ArrayDeque<ChildProcessConnection> mSpareSandboxedConnections =
+            new ArrayDeque<ChildProcessConnection>();
+    private static final ArrayDeque<ChildProcessConnection> mSparePrivilegedConnections =
+            new ArrayDeque<ChildProcessConnection>();
+
+    // The number of spare connections kept bound for each kind of service. By default a single
+    // sandboxed connection is kept, which matches the original single spare connection.
+    // Guarded by ChildProcessLauncher.class.
+    private static int mSandboxedWarmPoolSize = 1;
+    private static int mPrivilegedWarmPoolSize = 0;
+
+    // The application context passed to warmUp(). The pools are only refilled after a launch
+    // once this is set. Guarded by ChildProcessLauncher.class.
+    private static Context mWarmUpContext = null;
+    private static boolean mRefillPending = false;
+    // Set when the system asks us to trim memory; the pools stay empty until the next launch
+    // or warmUp() call. Guarded by ChildProcessLauncher.class.
+    private static boolean mWarmPoolsTrimmed = false;
+
+    private static ArrayDeque<ChildProcessConnection> getSpareConnections(boolean inSandbox) {
+        return inSandbox ? mSpareSandboxedConnections : mSparePrivilegedConnections;
+    }
+
+    private static int getWarmPoolSize(boolean inSandbox) {
+        if (mWarmPoolsTrimmed) return 0;
+        return inSandbox ? mSandboxedWarmPoolSize : mPrivilegedWarmPoolSize;
+    }
 
     /**
      * Returns the child process service interface for the given pid. This may be called on
@@ -202,8 +233,102 @@ public class ChildProcessLauncher {
     public static void warmUp(Context context) {
         synchronized (ChildProcessLauncher.class) {
             assert !ThreadUtils.runningOnUiThread();
-            if (mSpareSandboxedConnection == null) {
-                mSpareSandboxedConnection = allocateBoundConnection(context, null, true);
+            if (mWarmUpContext == null) {
+                mWarmUpContext = context.getApplicationContext();
+                mWarmUpContext.registerComponentCallbacks(new WarmPoolMemoryCallbacks());
+            }
+            mWarmPoolsTrimmed = false;
+            fillWarmPools(context);
+        }
+    }
+
+    /**
+     * Sets how many pre-bound connections are kept ready for new child processes. Once
+     * {@link #warmUp} was called, the pools are refilled in the background after every launch.
+     * Each size is capped to the number of registered services of that kind; spare connections
+     * occupy service slots just like running child processes.
+     * @param sandboxedPoolSize The number of spare sandboxed connections.
+     * @param privilegedPoolSize The number of spare privileged connections.
+     */
+    public static void setWarmPoolSizes(int sandboxedPoolSize, int privilegedPoolSize) {
+        synchronized (ChildProcessLauncher.class) {
+            mSandboxedWarmPoolSize =
+                    Math.max(0, Math.min(sandboxedPoolSize, MAX_REGISTERED_SANDBOXED_SERVICES));
+            mPrivilegedWarmPoolSize =
+                    Math.max(0, Math.min(privilegedPoolSize, MAX_REGISTERED_PRIVILEGED_SERVICES));
+            trimWarmPool(true, mSandboxedWarmPoolSize);
+            trimWarmPool(false, mPrivilegedWarmPoolSize);
+        }
+    }
+
+    // Binds spare connections until each pool reaches its size, or the allocator runs out of
+    // free slots. Must be called with the ChildProcessLauncher.class lock held, off the UI thread.
+    private static void fillWarmPools(Context context) {
+        for (boolean inSandbox : new boolean[] { true, false }) {
+            ArrayDeque<ChildProcessConnection> spares = getSpareConnections(inSandbox);
+            while (spares.size() < getWarmPoolSize(inSandbox)) {
+                ChildProcessConnection connection =
+                        allocateBoundConnection(context, null, inSandbox);
+                if (connection == null) break;
+                spares.add(connection);
+            }
+        }
+    }
+
+    // Unbinds spare connections until the pool holds at most maxSize. Freed slots go to the end
+    // of the allocator's free list, so they are not reused right away. Must be called with the
+    // ChildProcessLauncher.class lock held.
+    private static void trimWarmPool(boolean inSandbox, int maxSize) {
+        ArrayDeque<ChildProcessConnection> spares = getSpareConnections(inSandbox);
+        while (spares.size() > maxSize) {
+            ChildProcessConnection connection = spares.removeLast();
+            connection.unbind();
+            freeConnection(connection);
+        }
+    }
+
+    // Refills the pools on a background thread after a spare connection was used.
+    private static void scheduleWarmPoolRefill() {
+        synchronized (ChildProcessLauncher.class) {
+            if (mWarmUpContext == null || mRefillPending) return;
+            mRefillPending = true;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChildProcessLauncher.class) {
+                    mRefillPending = false;
+                    fillWarmPools(mWarmUpContext);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the spare connections when the system runs low on memory. Each spare connection
+     * keeps an idle child process alive.
+     */
+    private static class WarmPoolMemoryCallbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return;
+            dropWarmPools();
+        }
+
+        @Override
+        public void onLowMemory() {
+            dropWarmPools();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        private void dropWarmPools() {
+            synchronized (ChildProcessLauncher.class) {
+                mWarmPoolsTrimmed = true;
+                trimWarmPool(true, 0);
+                trimWarmPool(false, 0);
             }
         }
     }
@@ -263,13 +388,15 @@ public class ChildProcessLauncher {
             inSandbox = false;
         }
 
+        long launchStartNanos = System.nanoTime();
         ChildProcessConnection allocatedConnection = null;
         synchronized (ChildProcessLauncher.class) {
-            if (inSandbox) {
-                allocatedConnection = mSpareSandboxedConnection;
-                mSpareSandboxedConnection = null;
-            }
+            allocatedConnection = getSpareConnections(inSandbox).poll();
+            // A launch means the app is active again, so pools dropped on memory pressure may
+            // be rebuilt.
+            mWarmPoolsTrimmed = false;
         }
+        boolean usedSpareConnection = allocatedConnection != null;
         if (allocatedConnection == null) {
             allocatedConnection = allocateBoundConnection(context, commandLine, inSandbox);
             if (allocatedConnection == null) {
@@ -279,6 +406,10 @@ public class ChildProcessLauncher {
             }
         }
         final ChildProcessConnection connection = allocatedConnection;
+        connection.getLaunchTimings().onLaunchStarted(
+                launchStartNanos, processType, usedSpareConnection);
+        // Refill only after this launch holds its slot, so the pools never take it away.
+        scheduleWarmPoolRefill();
         Log.d(TAG, "Setting up connection to process: slot=" + connection.getServiceNumber());
         // Note: This runnable will be executed when the child connection is setup.
         final Runnable onConnect = new Runnable() {
@@ -292,6 +423,10 @@ public class ChildProcessLauncher {
                     freeConnection(connection);
                 }
                 nativeOnChildProcessStarted(clientContext, pid);
+                if (pid != NULL_PROCESS_HANDLE) {
+                    ChildProcessLaunchStats.getInstance().recordLaunch(
+                            connection.getLaunchTimings());
+                }
             }
         };
         // TODO(sievers): Revisit this as it doesn't correctly handle the utility process
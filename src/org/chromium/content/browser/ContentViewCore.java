@@ -305,6 +305,9 @@ public class ContentViewCore implements MotionEventDelegate, NavigationClient {
     private boolean mAttachedToWindow = false;
 
     private ContentViewGestureHandler mContentViewGestureHandler;
+    // Reused to convert the extra parameters of Bundle based gestures, UI thread only.
+    private final GestureParams mBundleGestureParams = new GestureParams();
+    private final InputLatencyTracker mInputLatencyTracker = new InputLatencyTracker();
     private PinchGestureStateListener mPinchGestureStateListener;
     private ZoomManager mZoomManager;
     private ZoomControlsDelegate mZoomControlsDelegate;
@@ -671,6 +674,14 @@ public class ContentViewCore implements MotionEventDelegate, NavigationClient {
                 hidePopupDialog();
                 resetGestureDetectors();
             }
+
+            @Override
+            public void didNavigateMainFrame(String url, String baseUrl,
+                    boolean isNavigationToDifferentPage) {
+                if (isNavigationToDifferentPage) {
+                    mContentViewGestureHandler.resetTouchEventQueue();
+                }
+            }
         };
     }
 
@@ -704,6 +715,7 @@ public class ContentViewCore implements MotionEventDelegate, NavigationClient {
         mZoomManager = new ZoomManager(mContext, this);
         mContentViewGestureHandler = new ContentViewGestureHandler(mContext, this, mZoomManager,
                 inputEventDeliveryMode);
+        mContentViewGestureHandler.setInputLatencyTracker(mInputLatencyTracker);
         mZoomControlsDelegate = new ZoomControlsDelegate() {
             @Override
             public void invokeZoomPicker() {}
@@ -1156,7 +1168,9 @@ public class ContentViewCore implements MotionEventDelegate, NavigationClient {
      */
     public boolean onTouchEvent(MotionEvent event) {
         undoScrollFocusedEditableNodeIntoViewIfNeeded(false);
-        return mContentViewGestureHandler.onTouchEvent(event);
+        boolean handled = mContentViewGestureHandler.onTouchEvent(event);
+        mInputLatencyTracker.onQueueDepth(mContentViewGestureHandler.getPendingMotionEventCount());
+        return handled;
     }
 
     /**
@@ -1166,6 +1180,23 @@ public class ContentViewCore implements MotionEventDelegate, NavigationClient {
         return mContentViewGestureHandler;
     }
 
+    /**
+     * Sets how long touch events wait for the page before scrolling starts regardless. Once the
+     * budget runs out the page gets a touch cancel, and pages that keep timing out stop
+     * delaying scrolls altogether. Disabled by default.
+     * @param timeoutMs The budget in milliseconds, or 0 to always wait for the page.
+     */
+    public void setTouchAckTimeoutMs(long timeoutMs) {
+        mContentViewGestureHandler.setTouchAckTimeoutMs(timeoutMs);
+    }
+
+    /**
+     * @return The latency statistics of the input forwarded by this ContentViewCore.
+     */
+    public InputLatencyTracker getInputLatencyTracker() {
+        return mInputLatencyTracker;
+    }
+
     @Override
     public boolean sendTouchEvent(long timeMs, int action, TouchPoint[] pts) {
         if (mNativeContentViewCore != 0) {
@@ -1178,17 +1209,27 @@ public class ContentViewCore implements MotionEventDelegate, NavigationClient {
     @CalledByNative
     private void hasTouchEventHandlers(boolean hasTouchHandlers) {
         mContentViewGestureHandler.hasTouchEventHandlers(hasTouchHandlers);
+        if (hasTouchHandlers) mContentViewGestureHandler.setTouchAckTimeoutPage(getUrl());
+        if (!hasTouchHandlers) mInputLatencyTracker.onQueueDepth(0);
     }
 
     @SuppressWarnings("unused")
     @CalledByNative
     private void confirmTouchEvent(int ackResult) {
         mContentViewGestureHandler.confirmTouchEvent(ackResult);
+        mInputLatencyTracker.onQueueDepth(mContentViewGestureHandler.getPendingMotionEventCount());
     }
 
     @Override
     public boolean sendGesture(int type, long timeMs, int x, int y, boolean lastInputEventForVSync,
                                Bundle b) {
+        mBundleGestureParams.setFromBundle(b);
+        return sendGesture(type, timeMs, x, y, lastInputEventForVSync, mBundleGestureParams);
+    }
+
+    @Override
+    public boolean sendGesture(int type, long timeMs, int x, int y, boolean lastInputEventForVSync,
+                               GestureParams params) {
         if (mNativeContentViewCore == 0) return false;
         updateTextHandlesForGesture(type);
         updatePinchGestureStateListener(type);
@@ -1211,8 +1252,7 @@ public class ContentViewCore implements MotionEventDelegate, NavigationClient {
                 nativeSingleTap(mNativeContentViewCore, timeMs, x, y, false);
                 return true;
             case ContentViewGestureHandler.GESTURE_SINGLE_TAP_CONFIRMED:
-                handleTapOrPress(timeMs, x, y, 0,
-                        b.getBoolean(ContentViewGestureHandler.SHOW_PRESS, false));
+                handleTapOrPress(timeMs, x, y, 0, params != null && params.mShowPress);
                 return true;
             case ContentViewGestureHandler.GESTURE_SINGLE_TAP_UNCONFIRMED:
                 nativeSingleTapUnconfirmed(mNativeContentViewCore, timeMs, x, y);
@@ -1227,19 +1267,22 @@ public class ContentViewCore implements MotionEventDelegate, NavigationClient {
                 nativeScrollBegin(mNativeContentViewCore, timeMs, x, y);
                 return true;
             case ContentViewGestureHandler.GESTURE_SCROLL_BY: {
-                int dx = b.getInt(ContentViewGestureHandler.DISTANCE_X);
-                int dy = b.getInt(ContentViewGestureHandler.DISTANCE_Y);
+                mInputLatencyTracker.onScrollGestureSent(timeMs);
+                int dx = params != null ? params.mDistanceX : 0;
+                int dy = params != null ? params.mDistanceY : 0;
                 nativeScrollBy(mNativeContentViewCore, timeMs, x, y, dx, dy,
                         lastInputEventForVSync);
                 return true;
             }
             case ContentViewGestureHandler.GESTURE_SCROLL_END:
+                mInputLatencyTracker.onScrollGestureEnded();
                 nativeScrollEnd(mNativeContentViewCore, timeMs);
                 return true;
             case ContentViewGestureHandler.GESTURE_FLING_START:
+                mInputLatencyTracker.onScrollGestureEnded();
                 nativeFlingStart(mNativeContentViewCore, timeMs, x, y,
-                        b.getInt(ContentViewGestureHandler.VELOCITY_X, 0),
-                        b.getInt(ContentViewGestureHandler.VELOCITY_Y, 0));
+                        params != null ? params.mVelocityX : 0,
+                        params != null ? params.mVelocityY : 0);
                 return true;
             case ContentViewGestureHandler.GESTURE_FLING_CANCEL:
                 nativeFlingCancel(mNativeContentViewCore, timeMs);
@@ -1248,11 +1291,13 @@ public class ContentViewCore implements MotionEventDelegate, NavigationClient {
                 nativePinchBegin(mNativeContentViewCore, timeMs, x, y);
                 return true;
             case ContentViewGestureHandler.GESTURE_PINCH_BY:
+                mInputLatencyTracker.onScrollGestureSent(timeMs);
                 nativePinchBy(mNativeContentViewCore, timeMs, x, y,
-                        b.getFloat(ContentViewGestureHandler.DELTA, 0),
+                        params != null ? params.mDelta : 0,
                         lastInputEventForVSync);
                 return true;
             case ContentViewGestureHandler.GESTURE_PINCH_END:
+                mInputLatencyTracker.onScrollGestureEnded();
                 nativePinchEnd(mNativeContentViewCore, timeMs);
                 return true;
             default:
@@ -1789,6 +1834,7 @@ public class ContentViewCore implements MotionEventDelegate, NavigationClient {
     @SuppressWarnings("unused")
     @CalledByNative
     private void onTabCrash() {
+        mContentViewGestureHandler.resetTouchEventQueue();
         getContentViewClient().onTabCrash();
     }
 
@@ -2176,6 +2222,7 @@ public class ContentViewCore implements MotionEventDelegate, NavigationClient {
 
         if (needHidePopupZoomer) mPopupZoomer.hide(true);
 
+        mInputLatencyTracker.onFrame(scrollChanged);
         if (scrollChanged) {
             mContainerViewInternals.onScrollChanged(
                     (int) mRenderCoordinates.fromLocalCssToPix(scrollOffsetX),
@@ -2379,6 +2426,7 @@ public class ContentViewCore implements MotionEventDelegate, NavigationClient {
     @SuppressWarnings("unused")
     @CalledByNative
     private void onWebContentsSwapped() {
+        mContentViewGestureHandler.resetTouchEventQueue();
         if (mImeAdapter != null && mNativeContentViewCore != 0) {
             mImeAdapter.attach(nativeGetNativeImeAdapter(mNativeContentViewCore));
         }
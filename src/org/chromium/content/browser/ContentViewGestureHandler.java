@@ -6,8 +6,10 @@ package org.chromium.content.browser;
 
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.MotionEvent;
 import android.view.ViewConfiguration;
 
@@ -52,7 +54,8 @@ class ContentViewGestureHandler implements LongPressDelegate {
      */
     static final String DELTA = "Delta";
 
-    private final Bundle mExtraParamBundle;
+    // Reused for the extra parameters of every gesture. Only used on the UI thread.
+    private final GestureParams mGestureParams;
     private GestureDetector mGestureDetector;
     private final ZoomManager mZoomManager;
     private LongPressDetector mLongPressDetector;
@@ -104,6 +107,46 @@ class ContentViewGestureHandler implements LongPressDelegate {
     // Last cancelled touch event as a result of scrolling or pinching.
     private MotionEvent mLastCancelledEvent = null;
 
+    // How long to wait for the renderer to ack a touch event before handling the gesture
+    // locally, or TOUCH_ACK_TIMEOUT_DISABLED.
+    private long mTouchAckTimeoutMs = TOUCH_ACK_TIMEOUT_DISABLED;
+
+    // True if touch events are sent to the page without waiting for their acks, because the
+    // page has repeatedly timed out. JavaScript cannot prevent scrolling in this mode.
+    private boolean mTouchAckTimeoutMode = false;
+
+    // The key of the current page in sTouchAckTimeoutCounts, or null.
+    private String mTouchAckTimeoutPage;
+
+    // The number of acks the renderer still owes for touch events that are no longer in the
+    // pending queue. Acks arrive in order, so these are the next ones to be ignored.
+    private int mStaleTouchAcks = 0;
+
+    // Told about the touch events whose acks pop the pending queue, or null. Synthetic cancels,
+    // events sent in the timeout mode and ignored acks are not reported.
+    private InputLatencyTracker mInputLatencyTracker;
+
+    private final Handler mTouchAckTimeoutHandler = new Handler();
+    private final Runnable mTouchAckTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onTouchAckTimeout();
+        }
+    };
+
+    // The number of touch ack timeouts seen per page. Shared by all handlers and only
+    // accessed on the UI thread.
+    private static final LruCache<String, Integer> sTouchAckTimeoutCounts =
+            new LruCache<String, Integer>(32);
+
+    // Touch point arrays indexed by pointer count, reused for every event sent to native.
+    // Native reads the points synchronously, so an array can be refilled as soon as
+    // sendTouchEvent() returns.
+    private TouchPoint[][] mTouchPoints = new TouchPoint[0][];
+
+    // Reused when coalescing move events into the pending queue. Grown as needed.
+    private MotionEvent.PointerCoords[] mPointerCoords = new MotionEvent.PointerCoords[0];
+
     private static final int DOUBLE_TAP_TIMEOUT = ViewConfiguration.getDoubleTapTimeout();
 
     //On single tap this will store the x, y coordinates of the touch.
@@ -152,6 +195,12 @@ class ContentViewGestureHandler implements LongPressDelegate {
     static final int INPUT_EVENT_ACK_STATE_NOT_CONSUMED = 2;
     static final int INPUT_EVENT_ACK_STATE_NO_CONSUMER_EXISTS = 3;
 
+    /** Disables the touch ack timeout, see {@link #setTouchAckTimeoutMs}. */
+    static final long TOUCH_ACK_TIMEOUT_DISABLED = 0;
+
+    // Pages that timed out this many times start in the touch ack timeout mode.
+    private static final int TOUCH_ACK_TIMEOUTS_BEFORE_TIMEOUT_MODE = 2;
+
     // Return values of sendTouchEventToNative();
     static final int EVENT_FORWARDED_TO_NATIVE = 0;
     static final int EVENT_CONVERTED_TO_CANCEL = 1;
@@ -187,6 +236,17 @@ class ContentViewGestureHandler implements LongPressDelegate {
                 int type, long timeMs, int x, int y, boolean lastInputEventForVSync,
                 Bundle extraParams);
 
+        /**
+         * Send a gesture event to the native side. Same as the Bundle version, with the extra
+         * parameters held in primitive fields.
+         * @param extraParams The extra parameters for certain gestures, or null. Only valid
+         * for the duration of the call.
+         * @return Whether the gesture was sent successfully.
+         */
+        boolean sendGesture(
+                int type, long timeMs, int x, int y, boolean lastInputEventForVSync,
+                GestureParams extraParams);
+
         /**
          * Gives the UI the chance to override each scroll event.
          * @param x The amount scrolled in the X direction.
@@ -209,7 +269,7 @@ class ContentViewGestureHandler implements LongPressDelegate {
     ContentViewGestureHandler(
             Context context, MotionEventDelegate delegate, ZoomManager zoomManager,
             int inputEventDeliveryMode) {
-        mExtraParamBundle = new Bundle();
+        mGestureParams = new GestureParams();
         mLongPressDetector = new LongPressDetector(context, this);
         mMotionEventDelegate = delegate;
         mZoomManager = zoomManager;
@@ -306,12 +366,12 @@ class ContentViewGestureHandler implements LongPressDelegate {
                         int dy = (int) (distanceY + mAccumulatedScrollErrorY);
                         mAccumulatedScrollErrorX = distanceX + mAccumulatedScrollErrorX - dx;
                         mAccumulatedScrollErrorY = distanceY + mAccumulatedScrollErrorY - dy;
-                        mExtraParamBundle.clear();
-                        mExtraParamBundle.putInt(DISTANCE_X, dx);
-                        mExtraParamBundle.putInt(DISTANCE_Y, dy);
                         if ((dx | dy) != 0) {
+                            mGestureParams.clear();
+                            mGestureParams.mDistanceX = dx;
+                            mGestureParams.mDistanceY = dy;
                             sendLastGestureForVSync(GESTURE_SCROLL_BY,
-                                    e2.getEventTime(), x, y, mExtraParamBundle);
+                                    e2.getEventTime(), x, y, mGestureParams);
                         }
 
                         mMotionEventDelegate.invokeZoomPicker();
@@ -367,10 +427,10 @@ class ContentViewGestureHandler implements LongPressDelegate {
                                 // for double tap timeout.
                                 float x = e.getX();
                                 float y = e.getY();
-                                mExtraParamBundle.clear();
-                                mExtraParamBundle.putBoolean(SHOW_PRESS, mShowPressIsCalled);
+                                mGestureParams.clear();
+                                mGestureParams.mShowPress = mShowPressIsCalled;
                                 if (sendMotionEventAsGesture(GESTURE_SINGLE_TAP_CONFIRMED, e,
-                                        mExtraParamBundle)) {
+                                        mGestureParams)) {
                                     mIgnoreSingleTap = true;
                                 }
                                 setClickXAndY((int) x, (int) y);
@@ -394,10 +454,10 @@ class ContentViewGestureHandler implements LongPressDelegate {
 
                         int x = (int) e.getX();
                         int y = (int) e.getY();
-                        mExtraParamBundle.clear();
-                        mExtraParamBundle.putBoolean(SHOW_PRESS, mShowPressIsCalled);
+                        mGestureParams.clear();
+                        mGestureParams.mShowPress = mShowPressIsCalled;
                         sendMotionEventAsGesture(GESTURE_SINGLE_TAP_CONFIRMED, e,
-                            mExtraParamBundle);
+                            mGestureParams);
                         setClickXAndY(x, y);
                         return true;
                     }
@@ -484,10 +544,10 @@ class ContentViewGestureHandler implements LongPressDelegate {
 
         mFlingMayBeActive = true;
 
-        mExtraParamBundle.clear();
-        mExtraParamBundle.putInt(VELOCITY_X, velocityX);
-        mExtraParamBundle.putInt(VELOCITY_Y, velocityY);
-        sendGesture(GESTURE_FLING_START, timeMs, x, y, mExtraParamBundle);
+        mGestureParams.clear();
+        mGestureParams.mVelocityX = velocityX;
+        mGestureParams.mVelocityY = velocityY;
+        sendGesture(GESTURE_FLING_START, timeMs, x, y, mGestureParams);
     }
 
     /**
@@ -547,9 +607,9 @@ class ContentViewGestureHandler implements LongPressDelegate {
      * @param delta The percentage to pinch by.
      */
     void pinchBy(long timeMs, int anchorX, int anchorY, float delta) {
-        mExtraParamBundle.clear();
-        mExtraParamBundle.putFloat(DELTA, delta);
-        sendLastGestureForVSync(GESTURE_PINCH_BY, timeMs, anchorX, anchorY, mExtraParamBundle);
+        mGestureParams.clear();
+        mGestureParams.mDelta = delta;
+        sendLastGestureForVSync(GESTURE_PINCH_BY, timeMs, anchorX, anchorY, mGestureParams);
         mPinchInProgress = true;
     }
 
@@ -662,7 +722,78 @@ class ContentViewGestureHandler implements LongPressDelegate {
         // call this method to set mHasTouchHandlers to false. We use this as
         // an indicator to clear the pending motion events so that events from
         // the previous page will not be carried over to the new page.
-        if (!mHasTouchHandlers) mPendingMotionEvents.clear();
+        if (!mHasTouchHandlers) {
+            // The acks owed for events already sent still arrive, so mStaleTouchAcks is kept.
+            clearPendingMotionEvents();
+        }
+    }
+
+    /**
+     * Drops the pending touch events and forgets the acks owed for earlier ones. Called when
+     * the renderer that owes them crashed or was replaced, or when the main frame moved to a
+     * new page, as those acks would otherwise swallow the acks of the new renderer.
+     */
+    void resetTouchEventQueue() {
+        clearPendingMotionEvents();
+        mStaleTouchAcks = 0;
+    }
+
+    private void clearPendingMotionEvents() {
+        while (!mPendingMotionEvents.isEmpty()) {
+            recyclePendingEvent(mPendingMotionEvents.removeFirst());
+        }
+        mTouchAckTimeoutHandler.removeCallbacks(mTouchAckTimeoutRunnable);
+        if (mInputLatencyTracker != null) mInputLatencyTracker.onTouchEventsDropped();
+        mTouchAckTimeoutMode = false;
+        mTouchAckTimeoutPage = null;
+    }
+
+    /**
+     * Sets the tracker that measures how long the renderer takes to ack touch events.
+     */
+    void setInputLatencyTracker(InputLatencyTracker tracker) {
+        mInputLatencyTracker = tracker;
+    }
+
+    /**
+     * Sets how long to wait for the renderer to ack a touch event. When the budget runs out,
+     * the page gets a touch cancel and the rest of the gesture is handled locally. Pages that
+     * time out repeatedly get their touch events without the browser waiting for the acks.
+     * @param timeoutMs The budget, or TOUCH_ACK_TIMEOUT_DISABLED to always wait for acks.
+     */
+    void setTouchAckTimeoutMs(long timeoutMs) {
+        mTouchAckTimeoutMs = timeoutMs;
+        if (timeoutMs == TOUCH_ACK_TIMEOUT_DISABLED) {
+            mTouchAckTimeoutHandler.removeCallbacks(mTouchAckTimeoutRunnable);
+            mTouchAckTimeoutMode = false;
+        }
+    }
+
+    /**
+     * Sets the page the touch ack timeouts are counted against. Pages that timed out before
+     * start in the timeout mode.
+     * @param page A key identifying the page, e.g. its URL, or null.
+     */
+    void setTouchAckTimeoutPage(String page) {
+        mTouchAckTimeoutPage = page;
+        mTouchAckTimeoutMode = mTouchAckTimeoutMs != TOUCH_ACK_TIMEOUT_DISABLED
+                && getTouchAckTimeoutCount(page) >= TOUCH_ACK_TIMEOUTS_BEFORE_TIMEOUT_MODE;
+    }
+
+    /**
+     * @return The number of touch ack timeouts seen on the page.
+     */
+    static int getTouchAckTimeoutCount(String page) {
+        if (page == null) return 0;
+        Integer count = sTouchAckTimeoutCounts.get(page);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * @return Whether touch events are currently sent without waiting for their acks.
+     */
+    boolean isInTouchAckTimeoutMode() {
+        return mTouchAckTimeoutMode;
     }
 
     private boolean offerTouchEventToJavaScript(MotionEvent event) {
@@ -682,22 +813,32 @@ class ContentViewGestureHandler implements LongPressDelegate {
             if (previousEvent != null
                     && previousEvent.getActionMasked() == MotionEvent.ACTION_MOVE
                     && previousEvent.getPointerCount() == event.getPointerCount()) {
-                MotionEvent.PointerCoords[] coords =
-                        new MotionEvent.PointerCoords[event.getPointerCount()];
-                for (int i = 0; i < coords.length; ++i) {
-                    coords[i] = new MotionEvent.PointerCoords();
+                MotionEvent.PointerCoords[] coords = getPointerCoords(event.getPointerCount());
+                for (int i = 0; i < event.getPointerCount(); ++i) {
                     event.getPointerCoords(i, coords[i]);
                 }
                 previousEvent.addBatch(event.getEventTime(), coords, event.getMetaState());
                 return true;
             }
         }
+        if (mTouchAckTimeoutMode && mPendingMotionEvents.isEmpty()) {
+            // Let the page see the event but handle it locally right away. Moves are skipped
+            // while the renderer is behind, so a slow page is not flooded.
+            if (event.getActionMasked() != MotionEvent.ACTION_MOVE || mStaleTouchAcks == 0) {
+                if (sendTouchEventToNative(event) != EVENT_NOT_FORWARDED) mStaleTouchAcks++;
+            }
+            return false;
+        }
         int forward = EVENT_NOT_FORWARDED;
         if (mPendingMotionEvents.isEmpty()) {
             forward = sendTouchEventToNative(event);
+            if (forward != EVENT_NOT_FORWARDED) onQueuedTouchEventSent();
+            if (forward == EVENT_FORWARDED_TO_NATIVE) scheduleTouchAckTimeout();
         }
         if (!mPendingMotionEvents.isEmpty() || forward != EVENT_NOT_FORWARDED) {
             // Copy the event, as the original may get mutated after this method returns.
+            // Clones come from the framework's MotionEvent pool and are recycled once
+            // they leave the queue.
             MotionEvent clone = MotionEvent.obtain(event);
             mPendingMotionEvents.add(clone);
             // If touch cancel was sent, remember the event.
@@ -710,7 +851,7 @@ class ContentViewGestureHandler implements LongPressDelegate {
     }
 
     private int sendTouchEventToNative(MotionEvent event) {
-        TouchPoint[] pts = new TouchPoint[event.getPointerCount()];
+        TouchPoint[] pts = getTouchPoints(event.getPointerCount());
         int type = TouchPoint.createTouchPoints(event, pts);
 
         if (type != TouchPoint.CONVERSION_ERROR) {
@@ -730,6 +871,38 @@ class ContentViewGestureHandler implements LongPressDelegate {
         return EVENT_NOT_FORWARDED;
     }
 
+    private TouchPoint[] getTouchPoints(int pointerCount) {
+        if (pointerCount >= mTouchPoints.length) {
+            TouchPoint[][] grown = new TouchPoint[pointerCount + 1][];
+            System.arraycopy(mTouchPoints, 0, grown, 0, mTouchPoints.length);
+            mTouchPoints = grown;
+        }
+        if (mTouchPoints[pointerCount] == null) {
+            mTouchPoints[pointerCount] = new TouchPoint[pointerCount];
+        }
+        return mTouchPoints[pointerCount];
+    }
+
+    private MotionEvent.PointerCoords[] getPointerCoords(int pointerCount) {
+        if (pointerCount > mPointerCoords.length) {
+            MotionEvent.PointerCoords[] grown = new MotionEvent.PointerCoords[pointerCount];
+            System.arraycopy(mPointerCoords, 0, grown, 0, mPointerCoords.length);
+            for (int i = mPointerCoords.length; i < pointerCount; ++i) {
+                grown[i] = new MotionEvent.PointerCoords();
+            }
+            mPointerCoords = grown;
+        }
+        return mPointerCoords;
+    }
+
+    // Returns an event that has left the pending queue to the MotionEvent pool. A recycled
+    // event may be handed out again by MotionEvent.obtain(), so it must not stay
+    // remembered as the last cancelled event.
+    private void recyclePendingEvent(MotionEvent event) {
+        if (event.equals(mLastCancelledEvent)) mLastCancelledEvent = null;
+        event.recycle();
+    }
+
     private boolean processTouchEvent(MotionEvent event) {
         boolean handled = false;
         // The last "finger up" is an end to scrolling but may not be
@@ -772,11 +945,18 @@ class ContentViewGestureHandler implements LongPressDelegate {
      * @param handled Whether the MotionEvent was handled on the native side.
      */
     void confirmTouchEvent(int ackResult) {
+        if (mStaleTouchAcks > 0) {
+            // The ack of an event that timed out or was sent in the timeout mode.
+            mStaleTouchAcks--;
+            return;
+        }
+        mTouchAckTimeoutHandler.removeCallbacks(mTouchAckTimeoutRunnable);
         if (mPendingMotionEvents.isEmpty()) {
             Log.w(TAG, "confirmTouchEvent with Empty pending list!");
             return;
         }
         TraceEvent.begin();
+        if (mInputLatencyTracker != null) mInputLatencyTracker.onTouchEventAcked();
         MotionEvent ackedEvent = mPendingMotionEvents.removeFirst();
         if (ackedEvent.equals(mLastCancelledEvent)) {
             // The event is canceled, just drain all the pending events until next
@@ -812,7 +992,7 @@ class ContentViewGestureHandler implements LongPressDelegate {
 
         mLongPressDetector.cancelLongPressIfNeeded(mPendingMotionEvents.iterator());
 
-        ackedEvent.recycle();
+        recyclePendingEvent(ackedEvent);
         TraceEvent.end();
     }
 
@@ -823,6 +1003,7 @@ class ContentViewGestureHandler implements LongPressDelegate {
         if (forward == EVENT_NOT_FORWARDED) {
             if (!mJavaScriptIsConsumingGesture) processTouchEvent(nextEvent);
             mPendingMotionEvents.removeFirst();
+            recyclePendingEvent(nextEvent);
             // Even though we missed sending one event to native, as long as we haven't
             // received INPUT_EVENT_ACK_STATE_NO_CONSUMER_EXISTS, we should keep sending
             // events on the queue to native.
@@ -830,17 +1011,70 @@ class ContentViewGestureHandler implements LongPressDelegate {
                 trySendNextEventToNative(mPendingMotionEvents.peekFirst());
             }
         } else if (forward == EVENT_CONVERTED_TO_CANCEL) {
+            onQueuedTouchEventSent();
             mLastCancelledEvent = mPendingMotionEvents.peekFirst();
+        } else {
+            onQueuedTouchEventSent();
+            scheduleTouchAckTimeout();
         }
     }
 
+    // Called when the head of the pending queue has been sent and its ack will pop it.
+    private void onQueuedTouchEventSent() {
+        if (mInputLatencyTracker != null) mInputLatencyTracker.onTouchEventSent();
+    }
+
+    private void scheduleTouchAckTimeout() {
+        if (mTouchAckTimeoutMs == TOUCH_ACK_TIMEOUT_DISABLED) return;
+        mTouchAckTimeoutHandler.removeCallbacks(mTouchAckTimeoutRunnable);
+        mTouchAckTimeoutHandler.postDelayed(mTouchAckTimeoutRunnable, mTouchAckTimeoutMs);
+    }
+
+    // Called when the event at the head of the queue was not acked within the budget. The
+    // page gets a touch cancel, and the queued events of the current gesture are handled
+    // locally as if the page had no touch handlers. The late acks are ignored.
+    private void onTouchAckTimeout() {
+        MotionEvent timedOutEvent = mPendingMotionEvents.peekFirst();
+        // Leave gestures alone that the page already consumed or that were cancelled.
+        if (timedOutEvent == null || mJavaScriptIsConsumingGesture
+                || timedOutEvent.equals(mLastCancelledEvent)) {
+            return;
+        }
+        TraceEvent.begin();
+        // The ack of the timed out event will be ignored, so it is no latency sample either.
+        if (mInputLatencyTracker != null) mInputLatencyTracker.onTouchEventAbandoned();
+        mStaleTouchAcks++;
+        if (timedOutEvent.getActionMasked() != MotionEvent.ACTION_UP) {
+            TouchPoint[] pts = getTouchPoints(timedOutEvent.getPointerCount());
+            if (TouchPoint.createTouchPoints(timedOutEvent, pts) != TouchPoint.CONVERSION_ERROR
+                    && mMotionEventDelegate.sendTouchEvent(SystemClock.uptimeMillis(),
+                            TouchPoint.TOUCH_EVENT_TYPE_CANCEL, pts)) {
+                mStaleTouchAcks++;
+            }
+        }
+
+        if (mTouchAckTimeoutPage != null) {
+            int timeouts = getTouchAckTimeoutCount(mTouchAckTimeoutPage) + 1;
+            sTouchAckTimeoutCounts.put(mTouchAckTimeoutPage, timeouts);
+            if (timeouts >= TOUCH_ACK_TIMEOUTS_BEFORE_TIMEOUT_MODE) mTouchAckTimeoutMode = true;
+        }
+
+        mPendingMotionEvents.removeFirst();
+        mNoTouchHandlerForGesture = true;
+        processTouchEvent(timedOutEvent);
+        drainAllPendingEventsUntilNextDown();
+        mLongPressDetector.cancelLongPressIfNeeded(mPendingMotionEvents.iterator());
+        recyclePendingEvent(timedOutEvent);
+        TraceEvent.end();
+    }
+
     private void drainAllPendingEventsUntilNextDown() {
         // Now process all events that are in the queue until the next down event.
         MotionEvent nextEvent = mPendingMotionEvents.peekFirst();
         while (nextEvent != null && nextEvent.getActionMasked() != MotionEvent.ACTION_DOWN) {
             processTouchEvent(nextEvent);
             mPendingMotionEvents.removeFirst();
-            nextEvent.recycle();
+            recyclePendingEvent(nextEvent);
             nextEvent = mPendingMotionEvents.peekFirst();
         }
 
@@ -851,18 +1085,18 @@ class ContentViewGestureHandler implements LongPressDelegate {
     }
 
     private boolean sendMotionEventAsGesture(
-            int type, MotionEvent event, Bundle extraParams) {
+            int type, MotionEvent event, GestureParams extraParams) {
         return mMotionEventDelegate.sendGesture(type, event.getEventTime(),
             (int) event.getX(), (int) event.getY(), false, extraParams);
     }
 
     private boolean sendGesture(
-            int type, long timeMs, int x, int y, Bundle extraParams) {
+            int type, long timeMs, int x, int y, GestureParams extraParams) {
         return mMotionEventDelegate.sendGesture(type, timeMs, x, y, false, extraParams);
     }
 
     private boolean sendLastGestureForVSync(
-            int type, long timeMs, int x, int y, Bundle extraParams) {
+            int type, long timeMs, int x, int y, GestureParams extraParams) {
         return mMotionEventDelegate.sendGesture(
             type, timeMs, x, y, mInputEventsDeliveredAtVSync, extraParams);
     }
@@ -914,6 +1148,13 @@ class ContentViewGestureHandler implements LongPressDelegate {
         return event != null && event.equals(mLastCancelledEvent);
     }
 
+    /**
+     * @return The number of touch events waiting for an ack from the renderer.
+     */
+    int getPendingMotionEventCount() {
+        return mPendingMotionEvents.size();
+    }
+
     /**
      * This is for testing only.
      * @return The number of motion events on the pending motion events queue.
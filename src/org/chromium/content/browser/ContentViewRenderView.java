@@ -90,7 +90,9 @@ public class ContentViewRenderView extends FrameLayout {
             if (mVSyncListener == null) return;
             if (mVSyncNotificationEnabled) {
                 mVSyncListener.onVSync(vsyncTimeMicros);
-                mVSyncMonitor.requestUpdate();
+                // Only keeps the callbacks going. Whether there is work is tracked through the
+                // listener registration.
+                mVSyncMonitor.requestUpdate(false);
             } else {
                 // Compensate for input event lag. Input events are delivered immediately on
                 // pre-JB releases, so this adjustment is only done for later versions.
@@ -106,11 +108,13 @@ public class ContentViewRenderView extends FrameLayout {
         public void registerVSyncListener(VSyncManager.Listener listener) {
             if (!mVSyncNotificationEnabled) mVSyncMonitor.requestUpdate();
             mVSyncNotificationEnabled = true;
+            mVSyncMonitor.setWorkPending(true);
         }
 
         @Override
         public void unregisterVSyncListener(VSyncManager.Listener listener) {
             mVSyncNotificationEnabled = false;
+            mVSyncMonitor.setWorkPending(false);
         }
 
         void setVSyncListener(VSyncManager.Listener listener) {
@@ -119,11 +123,33 @@ public class ContentViewRenderView extends FrameLayout {
         }
     }
 
+    /**
+     * Enables or disables the adaptive vsync mode, in which vsync callbacks stop within a few
+     * frames once the current ContentView has no animation or input to process. See
+     * {@link VSyncMonitor#setAdaptiveVSyncEnabled}.
+     */
+    public void setAdaptiveVSyncEnabled(boolean enabled) {
+        if (mVSyncAdapter != null) mVSyncAdapter.mVSyncMonitor.setAdaptiveVSyncEnabled(enabled);
+    }
+
+    /**
+     * @return The frame pacing statistics of the vsync signal driving the current ContentView,
+     *         or null once this view has been destroyed.
+     */
+    public FramePacingStats getFramePacingStats() {
+        if (mVSyncAdapter == null) return null;
+        return mVSyncAdapter.mVSyncMonitor.getFramePacingStats();
+    }
+
     /**
      * Should be called when the ContentViewRenderView is not needed anymore so its associated
      * native resource can be freed.
      */
     public void destroy() {
+        if (mVSyncAdapter != null) {
+            mVSyncAdapter.mVSyncMonitor.unregisterListener();
+            mVSyncAdapter = null;
+        }
         nativeDestroy(mNativeContentViewRenderView);
     }
 
@@ -137,7 +163,9 @@ public class ContentViewRenderView extends FrameLayout {
 
         mCurrentContentView = contentView;
         contentViewCore.onPhysicalBackingSizeChanged(getWidth(), getHeight());
-        mVSyncAdapter.setVSyncListener(contentViewCore.getVSyncListener(mVSyncAdapter));
+        if (mVSyncAdapter != null) {
+            mVSyncAdapter.setVSyncListener(contentViewCore.getVSyncListener(mVSyncAdapter));
+        }
     }
 
     /**
@@ -48,10 +48,34 @@ class DeviceMotionAndOrientation implements SensorEventListener {
     private Object mNativePtrLock = new Object();
 
     // The acceleration vector including gravity expressed in the body frame.
-    private float[] mAccelerationVector;
+    private final float[] mAccelerationVector = new float[3];
+    private boolean mHasAccelerationVector;
 
     // The geomagnetic vector expressed in the body frame.
-    private float[] mMagneticFieldVector;
+    private final float[] mMagneticFieldVector = new float[3];
+    private boolean mHasMagneticFieldVector;
+
+    // Scratch buffers for the orientation computation, reused for every sample.
+    private final float[] mRotationMatrix = new float[9];
+    private final float[] mRotationAngles = new float[3];
+
+    // Indices into mLastDeliveryNanos.
+    private static final int DELIVERY_ORIENTATION = 0;
+    private static final int DELIVERY_ACCELERATION = 1;
+    private static final int DELIVERY_ACCELERATION_INCLUDING_GRAVITY = 2;
+    private static final int DELIVERY_ROTATION_RATE = 3;
+
+    // Sensors often report faster than the rate that was asked for. Readings that arrive
+    // sooner than this fraction of the requested interval after the last delivered one are
+    // coalesced into the next one; the slack absorbs sensor jitter.
+    private static final int COALESCING_SLACK_PERCENT = 75;
+
+    // The requested interval between two deliveries of each event type, in nanoseconds.
+    private volatile long mOrientationIntervalNanos;
+    private volatile long mMotionIntervalNanos;
+
+    // When each kind of reading was last handed to native. Only used on the sensor thread.
+    private final long[] mLastDeliveryNanos = new long[4];
 
     // Lazily initialized when registering for notifications.
     private SensorManagerProxy mSensorManagerProxy;
@@ -114,6 +138,12 @@ class DeviceMotionAndOrientation implements SensorEventListener {
             }
             if (success) {
                 mNativePtr = nativePtr;
+                long intervalNanos = rateInMilliseconds * 1000000L;
+                if (eventType == DEVICE_ORIENTATION) {
+                    mOrientationIntervalNanos = intervalNanos;
+                } else {
+                    mMotionIntervalNanos = intervalNanos;
+                }
                 setEventTypeActive(eventType, true);
             }
             return success;
@@ -171,55 +201,64 @@ class DeviceMotionAndOrientation implements SensorEventListener {
 
     @VisibleForTesting
     void sensorChanged(int type, float[] values) {
+        long now = System.nanoTime();
 
         switch (type) {
             case Sensor.TYPE_ACCELEROMETER:
-                if (mAccelerationVector == null) {
-                    mAccelerationVector = new float[3];
-                }
                 System.arraycopy(values, 0, mAccelerationVector, 0,
                         mAccelerationVector.length);
-                if (mDeviceMotionIsActive) {
+                mHasAccelerationVector = true;
+                if (mDeviceMotionIsActive && isDeliveryDue(
+                        DELIVERY_ACCELERATION_INCLUDING_GRAVITY, mMotionIntervalNanos, now)) {
                     gotAccelerationIncludingGravity(mAccelerationVector[0], mAccelerationVector[1],
                         mAccelerationVector[2]);
                 }
                 break;
             case Sensor.TYPE_LINEAR_ACCELERATION:
-                if (mDeviceMotionIsActive) {
+                if (mDeviceMotionIsActive
+                        && isDeliveryDue(DELIVERY_ACCELERATION, mMotionIntervalNanos, now)) {
                     gotAcceleration(values[0], values[1], values[2]);
                 }
                 break;
             case Sensor.TYPE_GYROSCOPE:
-                if (mDeviceMotionIsActive) {
+                if (mDeviceMotionIsActive
+                        && isDeliveryDue(DELIVERY_ROTATION_RATE, mMotionIntervalNanos, now)) {
                     gotRotationRate(values[0], values[1], values[2]);
                 }
                 break;
             case Sensor.TYPE_MAGNETIC_FIELD:
-                if (mMagneticFieldVector == null) {
-                    mMagneticFieldVector = new float[3];
-                }
                 System.arraycopy(values, 0, mMagneticFieldVector, 0,
                         mMagneticFieldVector.length);
+                mHasMagneticFieldVector = true;
                 break;
             default:
                 // Unexpected
                 return;
         }
 
-        if (mDeviceOrientationIsActive) {
+        if (mDeviceOrientationIsActive && mHasAccelerationVector && mHasMagneticFieldVector
+                && isDeliveryDue(DELIVERY_ORIENTATION, mOrientationIntervalNanos, now)) {
             getOrientationUsingGetRotationMatrix();
         }
     }
 
-    private void getOrientationUsingGetRotationMatrix() {
-        if (mAccelerationVector == null || mMagneticFieldVector == null) {
-            return;
-        }
+    /**
+     * Returns whether a reading of the given kind should be handed to native now, rather than
+     * coalesced into a later one, and if so records the delivery.
+     */
+    private boolean isDeliveryDue(int delivery, long intervalNanos, long now) {
+        long minIntervalNanos = intervalNanos / 100 * COALESCING_SLACK_PERCENT;
+        long last = mLastDeliveryNanos[delivery];
+        if (last != 0 && now - last < minIntervalNanos) return false;
+        mLastDeliveryNanos[delivery] = now;
+        return true;
+    }
 
+    private void getOrientationUsingGetRotationMatrix() {
         // Get the rotation matrix.
         // The rotation matrix that transforms from the body frame to the earth
         // frame.
-        float[] deviceRotationMatrix = new float[9];
+        float[] deviceRotationMatrix = mRotationMatrix;
         if (!SensorManager.getRotationMatrix(deviceRotationMatrix, null, mAccelerationVector,
                 mMagneticFieldVector)) {
             return;
@@ -231,7 +270,7 @@ class DeviceMotionAndOrientation implements SensorEventListener {
         // the rotations are applied about the same axes and in the same order as required by the
         // API. The only conversions are sign changes as follows.  The angles are in radians
 
-        float[] rotationAngles = new float[3];
+        float[] rotationAngles = mRotationAngles;
         SensorManager.getOrientation(deviceRotationMatrix, rotationAngles);
 
         double alpha = Math.toDegrees(-rotationAngles[0]);
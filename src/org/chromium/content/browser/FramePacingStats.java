@@ -0,0 +1,179 @@
+// Copyright (c) 2013 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.content.browser;
+
+import org.chromium.content.common.LatencyHistogram;
+import org.chromium.content.common.TraceEvent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Frame pacing statistics collected by a {@link VSyncMonitor}.
+ *
+ * For every vsync callback the monitor records how many vsync periods were missed: a callback
+ * is late when it arrives more than one period after the request it answers, or after the
+ * previous callback when callbacks run back to back. The number of frames by missed period
+ * count forms the jank histogram. Intervals between back to back callbacks and, on the ICS
+ * timer path, how late the timer fired relative to the vsync grid derived from
+ * VSyncMonitor.setVSyncPointForICS() are kept as histograms in microseconds.
+ *
+ * Statistics are recorded on the UI thread and can be read from any thread. When tracing is
+ * enabled every interval and every late frame is also written as a {@link TraceEvent} instant,
+ * whose argument is the value.
+ */
+public class FramePacingStats {
+    /** The last bucket of the jank histogram counts frames that missed this many or more. */
+    public static final int MAX_MISSED_VSYNCS = 8;
+
+    private static final String INTERVAL_TRACE_NAME = "VSyncMonitor:intervalUs";
+    private static final String MISSED_TRACE_NAME = "VSyncMonitor:missedVSyncs";
+    private static final String TIMER_DRIFT_TRACE_NAME = "VSyncMonitor:timerDriftUs";
+
+    private final LatencyHistogram mIntervals = new LatencyHistogram();
+    private final LatencyHistogram mTimerDrift = new LatencyHistogram();
+    private final AtomicLongArray mJankCounts = new AtomicLongArray(MAX_MISSED_VSYNCS + 1);
+    private final AtomicLong mMissedVSyncs = new AtomicLong();
+    private final AtomicLong mIdleFrames = new AtomicLong();
+
+    FramePacingStats() {
+    }
+
+    /**
+     * @return The histogram of the intervals between back to back vsync callbacks, in
+     *         microseconds.
+     */
+    public LatencyHistogram getIntervalHistogram() {
+        return mIntervals;
+    }
+
+    /**
+     * @return The histogram of how late the ICS timer fired after the estimated vsync, in
+     *         microseconds. Empty when Choreographer is used.
+     */
+    public LatencyHistogram getTimerDriftHistogram() {
+        return mTimerDrift;
+    }
+
+    /**
+     * @return The number of frames, indexed by the number of vsyncs they missed. The last
+     *         entry counts frames that missed MAX_MISSED_VSYNCS or more.
+     */
+    public long[] getJankHistogram() {
+        long[] counts = new long[MAX_MISSED_VSYNCS + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mJankCounts.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * @return The number of vsync callbacks recorded.
+     */
+    public long getFrameCount() {
+        long count = 0;
+        for (int i = 0; i <= MAX_MISSED_VSYNCS; i++) {
+            count += mJankCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of vsync callbacks that missed at least one vsync.
+     */
+    public long getJankFrameCount() {
+        return getFrameCount() - mJankCounts.get(0);
+    }
+
+    /**
+     * @return The number of vsync callbacks delivered without any work requested or pending,
+     *         i.e. UI thread wakeups the listener had nothing to do for.
+     */
+    public long getIdleFrameCount() {
+        return mIdleFrames.get();
+    }
+
+    /**
+     * @return The total number of vsyncs missed.
+     */
+    public long getMissedVSyncCount() {
+        return mMissedVSyncs.get();
+    }
+
+    /**
+     * Drops all recorded frames.
+     */
+    public void reset() {
+        mIntervals.reset();
+        mTimerDrift.reset();
+        for (int i = 0; i <= MAX_MISSED_VSYNCS; i++) {
+            mJankCounts.set(i, 0);
+        }
+        mMissedVSyncs.set(0);
+        mIdleFrames.set(0);
+    }
+
+    /**
+     * Returns the current statistics as a flat map, e.g. "interval_p95_us" or "jank_frames".
+     */
+    public Map<String, Long> getSummary() {
+        Map<String, Long> summary = new LinkedHashMap<String, Long>();
+        summary.put("frames", getFrameCount());
+        summary.put("jank_frames", getJankFrameCount());
+        summary.put("missed_vsyncs", mMissedVSyncs.get());
+        summary.put("idle_frames", mIdleFrames.get());
+        addHistogram(summary, "interval", mIntervals);
+        if (mTimerDrift.getCount() > 0) addHistogram(summary, "timer_drift", mTimerDrift);
+        return summary;
+    }
+
+    private static void addHistogram(Map<String, Long> summary, String prefix,
+            LatencyHistogram histogram) {
+        summary.put(prefix + "_count", histogram.getCount());
+        summary.put(prefix + "_mean_us", histogram.getMean());
+        summary.put(prefix + "_p50_us", histogram.getPercentile(50));
+        summary.put(prefix + "_p95_us", histogram.getPercentile(95));
+        summary.put(prefix + "_p99_us", histogram.getPercentile(99));
+        summary.put(prefix + "_max_us", histogram.getMax());
+    }
+
+    /**
+     * Records a vsync callback.
+     * @param intervalMicros The time since the previous callback if the two ran back to back,
+     *                       or a negative value.
+     * @param missedVSyncs The number of vsyncs the callback arrived late by.
+     */
+    void recordFrame(long intervalMicros, int missedVSyncs) {
+        boolean tracing = TraceEvent.enabled();
+        if (intervalMicros >= 0) {
+            mIntervals.record(intervalMicros);
+            if (tracing) TraceEvent.instant(INTERVAL_TRACE_NAME, String.valueOf(intervalMicros));
+        }
+        mJankCounts.incrementAndGet(Math.min(missedVSyncs, MAX_MISSED_VSYNCS));
+        if (missedVSyncs > 0) {
+            mMissedVSyncs.addAndGet(missedVSyncs);
+            if (tracing) TraceEvent.instant(MISSED_TRACE_NAME, String.valueOf(missedVSyncs));
+        }
+    }
+
+    /**
+     * Records a vsync callback delivered without any work requested or pending.
+     */
+    void recordIdleFrame() {
+        mIdleFrames.incrementAndGet();
+    }
+
+    /**
+     * Records how late the ICS timer fired after the vsync it was aimed at.
+     */
+    void recordTimerDrift(long driftMicros) {
+        mTimerDrift.record(driftMicros);
+        if (TraceEvent.enabled()) {
+            TraceEvent.instant(TIMER_DRIFT_TRACE_NAME, String.valueOf(driftMicros));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+// Copyright (c) 2013 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.content.browser;
+
+import android.os.Bundle;
+
+/**
+ * The extra parameters of a gesture event sent by {@link ContentViewGestureHandler}, held in
+ * primitive fields so that a single instance can be refilled for every gesture without boxing.
+ * Which fields are meaningful depends on the gesture type, see the gesture type definitions in
+ * ContentViewGestureHandler.
+ */
+class GestureParams {
+    /** Used for GESTURE_FLING_START. */
+    int mVelocityX;
+    int mVelocityY;
+    /** Used for GESTURE_SCROLL_BY. */
+    int mDistanceX;
+    int mDistanceY;
+    /** Used for GESTURE_PINCH_BY. */
+    float mDelta;
+    /** Used for GESTURE_SINGLE_TAP_CONFIRMED. */
+    boolean mShowPress;
+
+    /**
+     * Resets every field to its default value.
+     */
+    void clear() {
+        mVelocityX = 0;
+        mVelocityY = 0;
+        mDistanceX = 0;
+        mDistanceY = 0;
+        mDelta = 0;
+        mShowPress = false;
+    }
+
+    /**
+     * Fills the fields from a bundle using the ContentViewGestureHandler keys. Missing keys
+     * leave their field at the default value.
+     */
+    void setFromBundle(Bundle extraParams) {
+        clear();
+        if (extraParams == null) return;
+        mVelocityX = extraParams.getInt(ContentViewGestureHandler.VELOCITY_X, 0);
+        mVelocityY = extraParams.getInt(ContentViewGestureHandler.VELOCITY_Y, 0);
+        mDistanceX = extraParams.getInt(ContentViewGestureHandler.DISTANCE_X, 0);
+        mDistanceY = extraParams.getInt(ContentViewGestureHandler.DISTANCE_Y, 0);
+        mDelta = extraParams.getFloat(ContentViewGestureHandler.DELTA, 0);
+        mShowPress = extraParams.getBoolean(ContentViewGestureHandler.SHOW_PRESS, false);
+    }
+}
@@ -0,0 +1,219 @@
+// Copyright (c) 2013 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.content.browser;
+
+import android.os.SystemClock;
+
+import org.chromium.content.common.LatencyHistogram;
+import org.chromium.content.common.TraceEvent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the latency of the input forwarded by a {@link ContentViewCore}, so that scroll jank
+ * can be attributed to the touch ack or to the frame that follows it.
+ *
+ * Two latencies are tracked, both in microseconds:
+ * <ul>
+ * <li>ack: from a touch event being sent to the renderer until confirmTouchEvent() acks it.</li>
+ * <li>frame: from the event time of the first scroll or pinch gesture not yet reflected on
+ *     screen until updateFrameInfo() reports the resulting scroll change. This includes the
+ *     time the touch waited in the pending queue, and has millisecond resolution because event
+ *     times do. Frames that change nothing do not end the measurement while the gesture
+ *     lasts. A gesture that never changes anything, e.g. a scroll against the edge, yields no
+ *     sample: its timestamp is dropped once the gesture has ended and its grace period has
+ *     passed.</li>
+ * </ul>
+ * The statistics are cumulative, not rolling: every percentile covers all the samples since
+ * the tracker was created with its ContentViewCore, or since the last {@link #reset()}. To
+ * follow a window of interest, such as one scroll session, call reset() at its start. The
+ * trace instants carry every sample for finer grained analysis.
+ * The high-water mark of the pending touch queue is tracked as well. The hooks are called on
+ * the UI thread only; the statistics are lock-free and can be queried from any thread. When
+ * tracing is enabled every sample is also written as a {@link TraceEvent} instant, whose
+ * argument is the value.
+ */
+public class InputLatencyTracker {
+    /** The latencies tracked by separate histograms. */
+    public static final int LATENCY_ACK = 0;
+    public static final int LATENCY_FRAME = 1;
+    private static final int LATENCY_COUNT = 2;
+    private static final String[] LATENCY_NAMES = { "ack", "frame" };
+    private static final String[] LATENCY_TRACE_NAMES = {
+        "InputLatency:ackUs", "InputLatency:frameUs"
+    };
+    private static final String QUEUE_DEPTH_TRACE_NAME = "InputLatency:queueDepth";
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[LATENCY_COUNT];
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    // How long after the end of a gesture a frame may still be attributed to it.
+    private static final long GESTURE_END_GRACE_MS = 250;
+
+    // The send times of the touch events awaiting an ack, oldest first. Only accessed on the
+    // UI thread; grown as needed.
+    private long[] mTouchSentNanos = new long[8];
+    private int mTouchSentHead;
+    private int mTouchSentCount;
+
+    // The following are only accessed on the UI thread. Zero means nothing is outstanding.
+    private long mFirstUnpaintedGestureMs;
+    private long mGestureEndedMs;
+    private int mLastQueueDepth;
+
+    InputLatencyTracker() {
+        for (int i = 0; i < LATENCY_COUNT; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param latency One of the LATENCY_* constants.
+     * @return The histogram of the given latency, in microseconds.
+     */
+    public LatencyHistogram getHistogram(int latency) {
+        return mHistograms[latency];
+    }
+
+    /**
+     * @return The largest number of touch events seen waiting for an ack at the same time.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * Drops all recorded samples and the queue high-water mark, starting a new session.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mMaxQueueDepth.set(0);
+    }
+
+    /**
+     * Returns the cumulative statistics as a flat map, e.g. "frame_p95_us" or
+     * "max_queue_depth".
+     */
+    public Map<String, Long> getSummary() {
+        Map<String, Long> summary = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < LATENCY_COUNT; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            String prefix = LATENCY_NAMES[i];
+            summary.put(prefix + "_count", histogram.getCount());
+            summary.put(prefix + "_mean_us", histogram.getMean());
+            summary.put(prefix + "_p50_us", histogram.getPercentile(50));
+            summary.put(prefix + "_p95_us", histogram.getPercentile(95));
+            summary.put(prefix + "_p99_us", histogram.getPercentile(99));
+            summary.put(prefix + "_max_us", histogram.getMax());
+        }
+        summary.put("max_queue_depth", (long) mMaxQueueDepth.get());
+        return summary;
+    }
+
+    /**
+     * Called when a touch event has been sent to the renderer. Touch events are acked in the
+     * order they were sent.
+     */
+    void onTouchEventSent() {
+        if (mTouchSentCount == mTouchSentNanos.length) {
+            long[] grown = new long[mTouchSentNanos.length * 2];
+            for (int i = 0; i < mTouchSentCount; i++) {
+                grown[i] = mTouchSentNanos[(mTouchSentHead + i) % mTouchSentNanos.length];
+            }
+            mTouchSentNanos = grown;
+            mTouchSentHead = 0;
+        }
+        mTouchSentNanos[(mTouchSentHead + mTouchSentCount) % mTouchSentNanos.length] =
+                System.nanoTime();
+        mTouchSentCount++;
+    }
+
+    /**
+     * Called when the renderer acks the oldest touch event in flight.
+     */
+    void onTouchEventAcked() {
+        if (mTouchSentCount == 0) return;
+        record(LATENCY_ACK, (System.nanoTime() - popTouchSentNanos()) / 1000);
+    }
+
+    /**
+     * Called when the oldest touch event in flight will not be acked in time and its ack is
+     * to be ignored.
+     */
+    void onTouchEventAbandoned() {
+        if (mTouchSentCount > 0) popTouchSentNanos();
+    }
+
+    /**
+     * Called when the pending touch events are dropped without being acked.
+     */
+    void onTouchEventsDropped() {
+        mTouchSentHead = 0;
+        mTouchSentCount = 0;
+    }
+
+    private long popTouchSentNanos() {
+        long sentNanos = mTouchSentNanos[mTouchSentHead];
+        mTouchSentHead = (mTouchSentHead + 1) % mTouchSentNanos.length;
+        mTouchSentCount--;
+        return sentNanos;
+    }
+
+    /**
+     * Called with the size of the pending touch queue whenever it may have grown.
+     */
+    void onQueueDepth(int depth) {
+        if (depth == mLastQueueDepth) return;
+        mLastQueueDepth = depth;
+        if (depth > mMaxQueueDepth.get()) mMaxQueueDepth.set(depth);
+        if (TraceEvent.enabled()) TraceEvent.instant(QUEUE_DEPTH_TRACE_NAME, String.valueOf(depth));
+    }
+
+    /**
+     * Called when a gesture that changes the scroll offset or the scale is sent.
+     * @param timeMs The event time of the gesture, in the {@link SystemClock#uptimeMillis()}
+     *               time base.
+     */
+    void onScrollGestureSent(long timeMs) {
+        if (mFirstUnpaintedGestureMs == 0) mFirstUnpaintedGestureMs = timeMs;
+        mGestureEndedMs = 0;
+    }
+
+    /**
+     * Called when a scroll, pinch or fling gesture ends. A frame arriving more than
+     * GESTURE_END_GRACE_MS later is not attributed to the gesture.
+     */
+    void onScrollGestureEnded() {
+        if (mFirstUnpaintedGestureMs != 0) mGestureEndedMs = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Called for every new frame. The first frame that changes the scroll yields a sample.
+     * Frames that change nothing keep the gesture pending, because the renderer may simply not
+     * have applied the scroll yet, until the gesture has ended and its grace period passed.
+     * @param scrollChanged Whether the frame changes the scroll offset or the scale.
+     */
+    void onFrame(boolean scrollChanged) {
+        if (mFirstUnpaintedGestureMs == 0) return;
+        long now = SystemClock.uptimeMillis();
+        boolean gestureExpired = mGestureEndedMs != 0
+                && now - mGestureEndedMs > GESTURE_END_GRACE_MS;
+        if (!scrollChanged && !gestureExpired) return;
+        if (!gestureExpired) record(LATENCY_FRAME, (now - mFirstUnpaintedGestureMs) * 1000);
+        mFirstUnpaintedGestureMs = 0;
+        mGestureEndedMs = 0;
+    }
+
+    private void record(int latency, long valueUs) {
+        mHistograms[latency].record(valueUs);
+        if (TraceEvent.enabled()) {
+            TraceEvent.instant(LATENCY_TRACE_NAMES[latency], String.valueOf(valueUs));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+// Copyright (c) 2013 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.content.browser;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the size and CRC32 of every pak that {@link ResourceExtractor} wrote to its output
+ * directory, together with a key describing which paks were requested. This lets later starts
+ * check the extracted files without listing the APK's assets again.
+ */
+class PakManifest {
+
+    private static final String LOGTAG = "PakManifest";
+
+    static final String FILENAME = "pak_manifest";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String VERSION_LINE = "v1";
+
+    /**
+     * Describes a single extracted pak file.
+     */
+    static class Entry {
+        final String name;
+        final long size;
+        final long crc;
+
+        Entry(String name, long size, long crc) {
+            this.name = name;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        /**
+         * @return Whether the file for this entry exists in dir and has the recorded size.
+         */
+        boolean isPresentIn(File dir) {
+            File file = new File(dir, name);
+            return file.isFile() && file.length() == size;
+        }
+    }
+
+    private final String mKey;
+    private final Map<String, Entry> mEntries = new TreeMap<String, Entry>();
+
+    PakManifest(String key) {
+        mKey = key;
+    }
+
+    String getKey() {
+        return mKey;
+    }
+
+    void put(Entry entry) {
+        mEntries.put(entry.name, entry);
+    }
+
+    Entry get(String name) {
+        return mEntries.get(name);
+    }
+
+    Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(mEntries.values());
+    }
+
+    /**
+     * @return Whether every pak listed in the manifest is present in dir with its recorded size.
+     */
+    boolean isIntact(File dir) {
+        if (mEntries.isEmpty()) return false;
+        for (Entry entry : mEntries.values()) {
+            if (!entry.isPresentIn(dir)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the manifest stored in dir.
+     * @return The manifest, or null if it does not exist or cannot be parsed.
+     */
+    static PakManifest read(File dir) {
+        File file = new File(dir, FILENAME);
+        if (!file.exists()) return null;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            if (!VERSION_LINE.equals(reader.readLine())) return null;
+            String key = reader.readLine();
+            if (key == null) return null;
+
+            PakManifest manifest = new PakManifest(key);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 3) return null;
+                manifest.put(new Entry(fields[0], Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2])));
+            }
+            return manifest;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to read pak manifest: " + e.getMessage());
+            return null;
+        } catch (NumberFormatException e) {
+            Log.w(LOGTAG, "Corrupt pak manifest: " + e.getMessage());
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing useful to do here.
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the manifest to dir through a temporary file, so that a crash never leaves a
+     * partially written manifest behind.
+     * @return Whether the manifest was written.
+     */
+    boolean write(File dir) {
+        File temp = new File(dir, FILENAME + TEMP_SUFFIX);
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(temp);
+            Writer writer = new OutputStreamWriter(stream, "UTF-8");
+            writer.write(VERSION_LINE + "\n");
+            writer.write(mKey + "\n");
+            for (Entry entry : mEntries.values()) {
+                writer.write(entry.name + "\t" + entry.size + "\t" + entry.crc + "\n");
+            }
+            writer.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to write pak manifest: " + e.getMessage());
+            temp.delete();
+            return false;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Nothing useful to do here.
+                }
+            }
+        }
+        return temp.renameTo(new File(dir, FILENAME));
+    }
+}
@@ -21,11 +21,25 @@ import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * Handles extracting the necessary resources bundled in an APK and moving them to a location on
@@ -34,8 +48,11 @@ import java.util.regex.Pattern;
 public class ResourceExtractor {
 
     private static final String LOGTAG = "ResourceExtractor";
+    // Preferences that recorded the extracted paks before the manifest replaced them.
     private static final String LAST_LANGUAGE = "Last language";
     private static final String PAK_FILENAMES = "Pak filenames";
+    private static final String TIMESTAMP_PREFIX = "pak_timestamp-";
+    private static final String TEMP_SUFFIX = ".tmp";
 
     private static String[] sMandatoryPaks = null;
 
@@ -45,7 +62,11 @@ public class ResourceExtractor {
     private static boolean sExtractImplicitLocalePak = true;
 
     private class ExtractTask extends AsyncTask<Void, Void, Void> {
-        private static final int BUFFER_SIZE = 16 * 1024;
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        // Upper bound on the number of paks copied at the same time. Extraction is I/O bound,
+        // so going wider than this mostly adds contention on flash storage.
+        private static final int MAX_EXTRACT_THREADS = 4;
 
         public ExtractTask() {
         }
@@ -62,31 +83,14 @@ public class ResourceExtractor {
                 return null;
             }
 
+            // A stale timestamp no longer wipes the directory. Instead, the paks recorded in the
+            // manifest are compared with the APK below and only the ones that changed are
+            // extracted again.
             String timestampFile = checkPakTimestamp();
-            if (timestampFile != null) {
-                deleteFiles(mContext);
-            }
 
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-            HashSet<String> filenames = (HashSet<String>) prefs.getStringSet(
-                    PAK_FILENAMES, new HashSet<String>());
             String currentLocale = LocalizationUtils.getDefaultLocale();
             String currentLanguage = currentLocale.split("-", 2)[0];
 
-            if (prefs.getString(LAST_LANGUAGE, "").equals(currentLanguage)
-                    &&  filenames.size() >= sMandatoryPaks.length) {
-                boolean filesPresent = true;
-                for (String file : filenames) {
-                    if (!new File(mOutputDir, file).exists()) {
-                        filesPresent = false;
-                        break;
-                    }
-                }
-                if (filesPresent) return null;
-            } else {
-                prefs.edit().putString(LAST_LANGUAGE, currentLanguage).apply();
-            }
-
             StringBuilder p = new StringBuilder();
             for (String mandatoryPak : sMandatoryPaks) {
                 if (p.length() > 0) p.append('|');
@@ -101,57 +105,56 @@ public class ResourceExtractor {
                 p.append(currentLanguage);
                 p.append("(-\\w+)?\\.pak");
             }
-            Pattern paksToInstall = Pattern.compile(p.toString());
+            String patternString = p.toString();
+
+            // The manifest records which paks were extracted for which pattern, so an intact
+            // output directory can be accepted without listing the APK's assets. Its entries
+            // stay useful when the pattern changes, as they describe individual files.
+            PakManifest previous = PakManifest.read(mOutputDir);
+            if (timestampFile == null && previous != null
+                    && patternString.equals(previous.getKey()) && previous.isIntact(mOutputDir)) {
+                return null;
+            }
+
+            // After an APK update, a previously extracted pak is only reused if the APK still
+            // holds an asset with the same size and CRC.
+            Map<String, PakManifest.Entry> apkPaks = null;
+            if (timestampFile != null && previous != null) {
+                apkPaks = readApkPakEntries();
+                if (apkPaks == null) previous = null;
+            }
 
+            Pattern paksToInstall = Pattern.compile(patternString);
+            PakManifest manifest = new PakManifest(patternString);
             AssetManager manager = mContext.getResources().getAssets();
             try {
                 // Loop through every asset file that we have in the APK, and look for the
                 // ones that we need to extract by trying to match the Patterns that we
                 // created above.
-                byte[] buffer = null;
+                List<String> paksToExtract = new ArrayList<String>();
                 String[] files = manager.list("");
                 for (String file : files) {
                     if (!paksToInstall.matcher(file).matches()) {
                         continue;
                     }
-                    File output = new File(mOutputDir, file);
-                    if (output.exists()) {
+                    PakManifest.Entry entry = previous != null ? previous.get(file) : null;
+                    if (entry != null && entry.isPresentIn(mOutputDir)
+                            && (apkPaks == null || matchesApk(entry, apkPaks.get(file)))) {
+                        manifest.put(entry);
                         continue;
                     }
+                    paksToExtract.add(file);
+                }
 
-                    InputStream is = null;
-                    OutputStream os = null;
-                    try {
-                        is = manager.open(file);
-                        os = new FileOutputStream(output);
-                        Log.i(LOGTAG, "Extracting resource " + file);
-                        if (buffer == null) {
-                            buffer = new byte[BUFFER_SIZE];
-                        }
-
-                        int count = 0;
-                        while ((count = is.read(buffer, 0, BUFFER_SIZE)) != -1) {
-                            os.write(buffer, 0, count);
-                        }
-                        os.flush();
-
-                        // Ensure something reasonable was written.
-                        if (output.length() == 0) {
-                            throw new IOException(file + " extracted with 0 length!");
-                        }
-
-                        filenames.add(file);
-                    } finally {
-                        try {
-                            if (is != null) {
-                                is.close();
-                            }
-                        } finally {
-                            if (os != null) {
-                                os.close();
-                            }
-                        }
+                // Every changed pak is staged in a temporary file first, and the staged files
+                // only replace the live ones once all of them were written successfully.
+                List<PakManifest.Entry> extracted = extractPaks(manager, paksToExtract);
+                for (PakManifest.Entry entry : extracted) {
+                    File staged = new File(mOutputDir, entry.name + TEMP_SUFFIX);
+                    if (!staged.renameTo(new File(mOutputDir, entry.name))) {
+                        throw new IOException("Unable to move " + entry.name + " into place");
                     }
+                    manifest.put(entry);
                 }
             } catch (IOException e) {
                 // TODO(benm): See crbug/152413.
@@ -163,6 +166,14 @@ public class ResourceExtractor {
                 return null;
             }
 
+            if (!manifest.write(mOutputDir)) {
+                // Worst case we don't have a manifest, so we'll list the assets again on the
+                // next start up and keep the paks that are already present.
+                Log.w(LOGTAG, "Failed to write resource pak manifest!");
+            } else {
+                deleteLegacyPreferences();
+            }
+
             // Finished, write out a timestamp file if we need to.
 
             if (timestampFile != null) {
@@ -174,12 +185,154 @@ public class ResourceExtractor {
                     Log.w(LOGTAG, "Failed to write resource pak timestamp!");
                 }
             }
-            // TODO(yusufo): Figure out why remove is required here.
-            prefs.edit().remove(PAK_FILENAMES).apply();
-            prefs.edit().putStringSet(PAK_FILENAMES, filenames).apply();
+            deleteStaleFiles(manifest, timestampFile);
             return null;
         }
 
+        // The manifest now describes the extracted paks, so the preferences that did so before
+        // it would only take up space in every preferences read.
+        private void deleteLegacyPreferences() {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+            if (!prefs.contains(PAK_FILENAMES) && !prefs.contains(LAST_LANGUAGE)) return;
+            prefs.edit().remove(PAK_FILENAMES).remove(LAST_LANGUAGE).apply();
+        }
+
+        // Reads the size and CRC of every pak stored in the APK's assets directory straight from
+        // the zip central directory, without decompressing anything. Returns null if the APK
+        // cannot be read.
+        private Map<String, PakManifest.Entry> readApkPakEntries() {
+            final String assetsPrefix = "assets/";
+            ZipFile apk = null;
+            try {
+                apk = new ZipFile(mContext.getApplicationInfo().sourceDir);
+                Map<String, PakManifest.Entry> entries = new HashMap<String, PakManifest.Entry>();
+                Enumeration<? extends ZipEntry> zipEntries = apk.entries();
+                while (zipEntries.hasMoreElements()) {
+                    ZipEntry zipEntry = zipEntries.nextElement();
+                    String name = zipEntry.getName();
+                    if (!name.startsWith(assetsPrefix) || !name.endsWith(".pak")) continue;
+                    name = name.substring(assetsPrefix.length());
+                    entries.put(name,
+                            new PakManifest.Entry(name, zipEntry.getSize(), zipEntry.getCrc()));
+                }
+                return entries;
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Unable to read APK pak entries: " + e.getMessage());
+                return null;
+            } finally {
+                if (apk != null) {
+                    try {
+                        apk.close();
+                    } catch (IOException e) {
+                        // Nothing useful to do here.
+                    }
+                }
+            }
+        }
+
+        private boolean matchesApk(PakManifest.Entry entry, PakManifest.Entry apkEntry) {
+            return apkEntry != null && apkEntry.size == entry.size && apkEntry.crc == entry.crc;
+        }
+
+        // Removes everything in the output directory that the new manifest does not refer to,
+        // such as paks for a previous language, staging leftovers and old timestamps.
+        private void deleteStaleFiles(PakManifest manifest, String timestampFile) {
+            File[] files = mOutputDir.listFiles();
+            if (files == null) return;
+            for (File file : files) {
+                String name = file.getName();
+                if (name.equals(PakManifest.FILENAME) || manifest.get(name) != null) continue;
+                if (name.startsWith(TIMESTAMP_PREFIX)
+                        && (timestampFile == null || name.equals(timestampFile))) {
+                    continue;
+                }
+                if (!file.delete()) {
+                    Log.w(LOGTAG, "Unable to remove stale resource " + name);
+                }
+            }
+        }
+
+        // Copies the given assets into the output directory, several at a time, and returns
+        // the manifest entries describing the files that were written.
+        private List<PakManifest.Entry> extractPaks(final AssetManager manager,
+                List<String> paks) throws IOException {
+            List<PakManifest.Entry> entries = new ArrayList<PakManifest.Entry>();
+            if (paks.isEmpty()) return entries;
+
+            int threads = Math.min(paks.size(), Math.min(MAX_EXTRACT_THREADS,
+                    Runtime.getRuntime().availableProcessors()));
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+            try {
+                List<Future<PakManifest.Entry>> results =
+                        new ArrayList<Future<PakManifest.Entry>>();
+                for (final String pak : paks) {
+                    results.add(executor.submit(new Callable<PakManifest.Entry>() {
+                        @Override
+                        public PakManifest.Entry call() throws IOException {
+                            return extractPak(manager, pak);
+                        }
+                    }));
+                }
+                for (Future<PakManifest.Entry> result : results) {
+                    entries.add(result.get());
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                throw new IOException("Pak extraction failed: " + cause);
+            } catch (InterruptedException e) {
+                throw new IOException("Pak extraction interrupted");
+            } finally {
+                executor.shutdownNow();
+            }
+            return entries;
+        }
+
+        // Streams a single asset into a staging file in the output directory, computing its
+        // CRC32 on the way.
+        private PakManifest.Entry extractPak(AssetManager manager, String file)
+                throws IOException {
+            File output = new File(mOutputDir, file + TEMP_SUFFIX);
+            InputStream is = null;
+            FileOutputStream os = null;
+            try {
+                is = manager.open(file);
+                os = new FileOutputStream(output);
+                Log.i(LOGTAG, "Extracting resource " + file);
+
+                ReadableByteChannel in = Channels.newChannel(is);
+                FileChannel out = os.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                CRC32 crc = new CRC32();
+                long size = 0;
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    crc.update(buffer.array(), buffer.arrayOffset(), buffer.limit());
+                    while (buffer.hasRemaining()) {
+                        size += out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                out.force(false);
+
+                // Ensure something reasonable was written.
+                if (size == 0) {
+                    throw new IOException(file + " extracted with 0 length!");
+                }
+                return new PakManifest.Entry(file, size, crc.getValue());
+            } finally {
+                try {
+                    if (is != null) {
+                        is.close();
+                    }
+                } finally {
+                    if (os != null) {
+                        os.close();
+                    }
+                }
+            }
+        }
+
         // Looks for a timestamp file on disk that indicates the version of the APK that
         // the resource paks were extracted from. Returns null if a timestamp was found
         // and it indicates that the resources match the current APK. Otherwise returns
@@ -188,7 +341,6 @@ public class ResourceExtractor {
         // android.content.Intent#ACTION_PACKAGE_CHANGED as that causes process churn
         // on (re)installation of *all* APK files.
         private String checkPakTimestamp() {
-            final String TIMESTAMP_PREFIX = "pak_timestamp-";
             PackageManager pm = mContext.getPackageManager();
             PackageInfo pi = null;
 
@@ -10,7 +10,8 @@ import android.view.MotionEvent;
 import org.chromium.base.CalledByNative;
 
 // This class converts android MotionEvent into an array of touch points so
-// that they can be forwarded to the renderer process.
+// that they can be forwarded to the renderer process. Touch points are mutable
+// so that callers can keep an array around and refill it for every event.
 class TouchPoint {
 
     public static final int CONVERSION_ERROR = -1;
@@ -31,14 +32,18 @@ class TouchPoint {
     private static int TOUCH_POINT_STATE_STATIONARY;
     private static int TOUCH_POINT_STATE_CANCELLED;
 
-    private final int mState;
-    private final int mId;
-    private final float mX;
-    private final float mY;
-    private final float mSize;
-    private final float mPressure;
+    private int mState;
+    private int mId;
+    private float mX;
+    private float mY;
+    private float mSize;
+    private float mPressure;
 
     TouchPoint(int state, int id, float x, float y, float size, float pressure) {
+        set(state, id, x, y, size, pressure);
+    }
+
+    void set(int state, int id, float x, float y, float size, float pressure) {
         mState = state;
         mId = id;
         mX = x;
@@ -73,7 +78,8 @@ class TouchPoint {
     @CalledByNative
     public double getPressure() { return mPressure; }
 
-    // Converts a MotionEvent into an array of touch points.
+    // Converts a MotionEvent into an array of touch points. Touch points already
+    // present in the array are updated in place rather than replaced.
     // Returns the WebTouchEvent::Type for the MotionEvent and -1 for failure.
     public static int createTouchPoints(MotionEvent event, TouchPoint[] pts) {
         int type;
@@ -114,9 +120,15 @@ class TouchPoint {
                 state = event.getActionMasked() == MotionEvent.ACTION_POINTER_DOWN ?
                     TOUCH_POINT_STATE_PRESSED : TOUCH_POINT_STATE_RELEASED;
             }
-            pts[i] = new TouchPoint(state, event.getPointerId(i),
-                                    event.getX(i), event.getY(i),
-                                    event.getSize(i), event.getPressure(i));
+            if (pts[i] == null) {
+                pts[i] = new TouchPoint(state, event.getPointerId(i),
+                                        event.getX(i), event.getY(i),
+                                        event.getSize(i), event.getPressure(i));
+            } else {
+                pts[i].set(state, event.getPointerId(i),
+                           event.getX(i), event.getY(i),
+                           event.getSize(i), event.getPressure(i));
+            }
         }
 
         return type;
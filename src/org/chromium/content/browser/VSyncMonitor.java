@@ -19,6 +19,11 @@ import org.chromium.content.common.TraceEvent;
  * period (on ICS, see below), unless stop() is called.
  * On ICS, VSyncMonitor relies on setVSyncPointForICS() being called to set a reasonable
  * approximation of a vertical sync starting point; see also http://crbug.com/156397.
+ * In the adaptive mode, see setAdaptiveVSyncEnabled(), the number of trailing callbacks follows
+ * the work the caller reports instead: it grows while there is work on consecutive frames and
+ * shrinks back to zero once callbacks go unused. Work is reported by requestUpdate() and
+ * setWorkPending(), but not by requestUpdate(false).
+ * The pacing of the callbacks is recorded in a {@link FramePacingStats}.
  */
 public class VSyncMonitor {
     private static final String TAG = VSyncMonitor.class.getSimpleName();
@@ -46,9 +51,25 @@ public class VSyncMonitor {
 
     private boolean mHaveRequestInFlight;
 
+    private final FramePacingStats mFramePacingStats = new FramePacingStats();
+
+    // The time the callback in flight is measured against: the previous callback if it was
+    // posted from there, otherwise the requestUpdate() call that posted it.
+    private long mCallbackReferenceNano;
+    private boolean mCallbackIsBackToBack;
+
     private int mTriggerNextVSyncCount;
     private static final int MAX_VSYNC_COUNT = 5;
 
+    // In the adaptive mode, the number of callbacks requestUpdate() asks for after the first.
+    private boolean mAdaptiveVSync;
+    private int mAdaptiveVSyncCount;
+    private long mLastWorkFrameTimeNano;
+
+    // Whether work was requested since the last callback, or is pending until further notice.
+    private boolean mWorkRequestedSinceLastVSync;
+    private boolean mWorkPending;
+
     // Choreographer is used to detect vsync on >= JB.
     private final Choreographer mChoreographer;
     private final Choreographer.FrameCallback mVSyncFrameCallback;
@@ -92,7 +113,10 @@ public class VSyncMonitor {
                 @Override
                 public void run() {
                     TraceEvent.instant("VSyncTimer");
-                    onVSyncCallback(System.nanoTime());
+                    long now = System.nanoTime();
+                    mFramePacingStats.recordTimerDrift(
+                            Math.max(0, now - mLastPostedNano) / NANOSECONDS_PER_MICROSECOND);
+                    onVSyncCallback(now);
                 }
             };
             mGoodStartingPointNano = getCurrentNanoTime();
@@ -107,6 +131,13 @@ public class VSyncMonitor {
         return mRefreshPeriodNano / NANOSECONDS_PER_MICROSECOND;
     }
 
+    /**
+     * Returns the frame pacing statistics of the vsync callbacks delivered so far.
+     */
+    public FramePacingStats getFramePacingStats() {
+        return mFramePacingStats;
+    }
+
     /**
      * Determine whether a true vsync signal is available on this platform.
      */
@@ -122,6 +153,25 @@ public class VSyncMonitor {
         mTriggerNextVSyncCount = 0;
     }
 
+    /**
+     * Enables or disables the adaptive mode. In the adaptive mode requestUpdate() asks for
+     * between zero and MAX_VSYNC_COUNT trailing callbacks depending on whether recent callbacks
+     * were followed by another request, so an idle listener stops waking the UI thread up.
+     */
+    public void setAdaptiveVSyncEnabled(boolean enabled) {
+        mAdaptiveVSync = enabled;
+        mAdaptiveVSyncCount = 0;
+    }
+
+    /**
+     * Tells the monitor whether the caller has ongoing work, e.g. an animation, that needs
+     * every frame. Callbacks delivered while work is pending count as busy frames in the
+     * adaptive mode.
+     */
+    public void setWorkPending(boolean pending) {
+        mWorkPending = pending;
+    }
+
     /**
      * Unregister the listener.
      * No vsync events will be reported afterwards.
@@ -137,9 +187,19 @@ public class VSyncMonitor {
      * It will be called at most MAX_VSYNC_COUNT times unless requestUpdate() is called again.
      */
     public void requestUpdate() {
-        mTriggerNextVSyncCount = MAX_VSYNC_COUNT;
+        requestUpdate(true);
+    }
+
+    /**
+     * Same as requestUpdate(), but lets a caller that only keeps the callbacks going, e.g. by
+     * calling this from every Listener.onVSync(), say that it has no new work.
+     * @param hasWork Whether the upcoming frame has work to do.
+     */
+    public void requestUpdate(boolean hasWork) {
+        mTriggerNextVSyncCount = mAdaptiveVSync ? mAdaptiveVSyncCount : MAX_VSYNC_COUNT;
+        if (hasWork) mWorkRequestedSinceLastVSync = true;
         mLastUpdateRequestNano = getCurrentNanoTime();
-        postCallback();
+        postCallback(mLastUpdateRequestNano, false);
     }
 
     /**
@@ -157,18 +217,55 @@ public class VSyncMonitor {
     private void onVSyncCallback(long frameTimeNanos) {
         assert mHaveRequestInFlight;
         mHaveRequestInFlight = false;
+        recordFramePacing(frameTimeNanos);
+        boolean hadWork = mWorkPending || mWorkRequestedSinceLastVSync;
+        mWorkRequestedSinceLastVSync = false;
+        if (!hadWork) mFramePacingStats.recordIdleFrame();
+        if (mAdaptiveVSync) adaptVSyncCount(hadWork, frameTimeNanos);
         if (mTriggerNextVSyncCount > 0) {
             mTriggerNextVSyncCount--;
-            postCallback();
+            postCallback(frameTimeNanos, true);
         }
         if (mListener != null) {
             mListener.onVSync(this, frameTimeNanos / NANOSECONDS_PER_MICROSECOND);
         }
     }
 
-    private void postCallback() {
+    // Ramps the trailing callbacks up by one for every callback that was asked for right after
+    // another one, and halves them for every callback that was not asked for. Sustained
+    // animations get a steady stream, while isolated requests and an idle listener get none.
+    private void adaptVSyncCount(boolean hadWork, long frameTimeNanos) {
+        if (hadWork) {
+            if (frameTimeNanos - mLastWorkFrameTimeNano < mRefreshPeriodNano * 3 / 2) {
+                mAdaptiveVSyncCount = Math.min(mAdaptiveVSyncCount + 1, MAX_VSYNC_COUNT);
+            }
+            mLastWorkFrameTimeNano = frameTimeNanos;
+        } else {
+            mAdaptiveVSyncCount /= 2;
+            mTriggerNextVSyncCount = Math.min(mTriggerNextVSyncCount, mAdaptiveVSyncCount);
+        }
+    }
+
+    // A back to back callback is late if it arrives more than one period after the previous
+    // one. A requested callback is late if it arrives more than one period after the request.
+    private void recordFramePacing(long frameTimeNanos) {
+        long sinceReference = frameTimeNanos - mCallbackReferenceNano;
+        long missedVSyncs;
+        long intervalMicros = -1;
+        if (mCallbackIsBackToBack) {
+            missedVSyncs = (sinceReference + mRefreshPeriodNano / 2) / mRefreshPeriodNano - 1;
+            intervalMicros = Math.max(0, sinceReference) / NANOSECONDS_PER_MICROSECOND;
+        } else {
+            missedVSyncs = (sinceReference - 1) / mRefreshPeriodNano;
+        }
+        mFramePacingStats.recordFrame(intervalMicros, (int) Math.max(0, missedVSyncs));
+    }
+
+    private void postCallback(long referenceNano, boolean backToBack) {
         if (mHaveRequestInFlight) return;
         mHaveRequestInFlight = true;
+        mCallbackReferenceNano = referenceNano;
+        mCallbackIsBackToBack = backToBack;
         if (isVSyncSignalAvailable()) {
             mChoreographer.postFrameCallback(mVSyncFrameCallback);
         } else {
@@ -11,12 +11,23 @@ import android.util.Log;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Handles running cleanup tasks when an object becomes eligible for GC. Cleanup tasks
- * are always executed on the main thread. In general, classes should not have
+ * are executed on the main thread unless they are created as thread-agnostic, in which
+ * case they run on a dedicated background thread. In general, classes should not have
  * finalizers and likewise should not use this class for the same reasons. The
  * exception is where public APIs exist that require native side resources to be
  * cleaned up in response to java side GC of API objects. (Private/internal
@@ -34,23 +45,42 @@ public class CleanupReference extends WeakReference<Object> {
 
     // The VM will enqueue CleanupReference instance onto sGcQueue when it becomes eligible for
     // garbage collection (i.e. when all references to the underlying object are nullified).
-    // |sReaperThread| processes this queue by forwarding the references on to the UI thread
-    // (via REMOVE_REF message) to perform cleanup.
+    // |sReaperThread| drains this queue in batches: thread-agnostic tasks are handed to
+    // |sCleanupExecutor| and main thread tasks are coalesced into a single message to
+    // |sHandler| per batch.
     private static ReferenceQueue<Object> sGcQueue = new ReferenceQueue<Object>();
-    private static Object sCleanupMonitor = new Object();
 
     static private final Thread sReaperThread = new Thread(TAG) {
         public void run() {
+            List<CleanupReference> backgroundRefs = new ArrayList<CleanupReference>();
             while (true) {
                 try {
                     CleanupReference ref = (CleanupReference) sGcQueue.remove();
-                    if (DEBUG) Log.d(TAG, "removed one ref from GC queue");
-                    synchronized (sCleanupMonitor) {
-                        Message.obtain(sHandler, REMOVE_REF, ref).sendToTarget();
-                        // Give the UI thread chance to run cleanup before looping around and
-                        // taking the next item from the queue, to avoid Message bombing it.
-                        sCleanupMonitor.wait(500);
+                    int count = 0;
+                    do {
+                        if (ref.mRunOnUiThread) {
+                            sPendingUiRefs.add(ref);
+                        } else {
+                            backgroundRefs.add(ref);
+                        }
+                        count++;
+                    } while ((ref = (CleanupReference) sGcQueue.poll()) != null);
+                    if (DEBUG) Log.d(TAG, "removed " + count + " refs from GC queue");
+
+                    if (!backgroundRefs.isEmpty()) {
+                        final CleanupReference[] batch =
+                                backgroundRefs.toArray(new CleanupReference[backgroundRefs.size()]);
+                        backgroundRefs.clear();
+                        sCleanupExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                for (CleanupReference ref : batch) {
+                                    ref.runCleanupTaskInternal();
+                                }
+                            }
+                        });
                     }
+                    scheduleUiCleanup();
                 } catch (Exception e) {
                     Log.e(TAG, "Queue remove exception:", e);
                 }
@@ -58,99 +88,118 @@ public class CleanupReference extends WeakReference<Object> {
         }
     };
 
-    static {
-        sReaperThread.setDaemon(true);
-        sReaperThread.start();
-    }
+    /**
+     * Runs the cleanup tasks that do not need the main thread, one batch at a time.
+     */
+    private static final Executor sCleanupExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG + "Executor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
-    // Message's sent in the |what| field to |sHandler|.
+    // Main thread cleanups waiting for |sHandler|, and whether a message to drain them is
+    // already on its way.
+    private static final Queue<CleanupReference> sPendingUiRefs =
+            new ConcurrentLinkedQueue<CleanupReference>();
+    private static final AtomicBoolean sUiCleanupScheduled = new AtomicBoolean();
 
-    // Add a new reference to sRefs. |msg.obj| is the CleanupReference to add.
-    private static final int ADD_REF = 1;
-    // Remove reference from sRefs. |msg.obj| is the CleanupReference to remove.
-    private static final int REMOVE_REF = 2;
+    // Message sent in the |what| field to |sHandler| to run all of |sPendingUiRefs|.
+    private static final int RUN_UI_CLEANUPS = 1;
 
     /**
-     * This {@link Handler} polls {@link #sRefs}, looking for cleanup tasks that
-     * are ready to run.
+     * This {@link Handler} runs the main thread cleanup tasks queued in
+     * {@link #sPendingUiRefs}.
      */
     private static Handler sHandler = new Handler(Looper.getMainLooper()) {
         @Override
         public void handleMessage(Message msg) {
-            TraceEvent.begin();
-            CleanupReference ref = (CleanupReference) msg.obj;
-            switch (msg.what) {
-                case ADD_REF:
-                    sRefs.add(ref);
-                    break;
-                case REMOVE_REF:
-                    ref.runCleanupTaskInternal();
-                    break;
-                default:
-                    Log.e(TAG, "Bad message=" + msg.what);
-                    break;
+            if (msg.what != RUN_UI_CLEANUPS) {
+                Log.e(TAG, "Bad message=" + msg.what);
+                return;
             }
-
-            if (DEBUG) Log.d(TAG, "will try and cleanup; max = " + sRefs.size());
-
-            synchronized (sCleanupMonitor) {
-                // Always run the cleanup loop here even when adding or removing refs, to avoid
-                // falling behind on rapid garbage allocation inner loops.
-                while ((ref = (CleanupReference) sGcQueue.poll()) != null) {
-                    ref.runCleanupTaskInternal();
-                }
-                sCleanupMonitor.notifyAll();
+            TraceEvent.begin();
+            sUiCleanupScheduled.set(false);
+            CleanupReference ref;
+            while ((ref = sPendingUiRefs.poll()) != null) {
+                ref.runCleanupTaskInternal();
             }
+            if (DEBUG) Log.d(TAG, "ran main thread cleanups; refs left = " + sRefs.size());
             TraceEvent.end();
         }
     };
 
     /**
      * Keep a strong reference to {@link CleanupReference} so that it will
-     * actually get enqueued.
-     * Only accessed on the UI thread.
+     * actually get enqueued. Safe to update from any thread.
      */
-    private static Set<CleanupReference> sRefs = new HashSet<CleanupReference>();
+    private static Set<CleanupReference> sRefs = Collections.newSetFromMap(
+            new ConcurrentHashMap<CleanupReference, Boolean>());
+
+    static {
+        sReaperThread.setDaemon(true);
+        sReaperThread.start();
+    }
 
-    private Runnable mCleanupTask;
+    private final AtomicReference<Runnable> mCleanupTask;
+    private final boolean mRunOnUiThread;
 
     /**
      * @param obj the object whose loss of reachability should trigger the
      *            cleanup task.
-     * @param cleanupTask the task to run once obj loses reachability.
+     * @param cleanupTask the task to run on the main thread once obj loses reachability.
      */
     public CleanupReference(Object obj, Runnable cleanupTask) {
+        this(obj, cleanupTask, true);
+    }
+
+    /**
+     * @param obj the object whose loss of reachability should trigger the
+     *            cleanup task.
+     * @param cleanupTask the task to run once obj loses reachability.
+     * @param runOnUiThread whether the task must run on the main thread. Otherwise it runs on
+     *                      a background thread, together with the other tasks collected at
+     *                      the same time.
+     */
+    public CleanupReference(Object obj, Runnable cleanupTask, boolean runOnUiThread) {
         super(obj, sGcQueue);
         if (DEBUG) Log.d(TAG, "+++ CREATED ONE REF");
-        mCleanupTask = cleanupTask;
-        handleOnUiThread(ADD_REF);
+        mCleanupTask = new AtomicReference<Runnable>(cleanupTask);
+        mRunOnUiThread = runOnUiThread;
+        sRefs.add(this);
     }
 
     /**
-     * Clear the cleanup task {@link Runnable} so that nothing will be done
-     * after garbage collection.
+     * Run the cleanup task now instead of after garbage collection. A main thread task
+     * runs immediately when called on the main thread and is posted otherwise; a
+     * thread-agnostic task runs on the calling thread.
      */
     public void cleanupNow() {
-        handleOnUiThread(REMOVE_REF);
+        if (!mRunOnUiThread || Looper.myLooper() == sHandler.getLooper()) {
+            runCleanupTaskInternal();
+        } else {
+            sPendingUiRefs.add(this);
+            scheduleUiCleanup();
+        }
     }
 
-    private void handleOnUiThread(int what) {
-        Message msg = Message.obtain(sHandler, what, this);
-        if (Looper.myLooper() == sHandler.getLooper()) {
-            sHandler.handleMessage(msg);
-            msg.recycle();
-        } else {
-            msg.sendToTarget();
+    private static void scheduleUiCleanup() {
+        if (sPendingUiRefs.isEmpty()) return;
+        if (sUiCleanupScheduled.compareAndSet(false, true)) {
+            sHandler.sendEmptyMessage(RUN_UI_CLEANUPS);
         }
     }
 
     private void runCleanupTaskInternal() {
         if (DEBUG) Log.d(TAG, "runCleanupTaskInternal");
         sRefs.remove(this);
-        if (mCleanupTask != null) {
+        Runnable cleanupTask = mCleanupTask.getAndSet(null);
+        if (cleanupTask != null) {
             if (DEBUG) Log.i(TAG, "--- CLEANING ONE REF");
-            mCleanupTask.run();
-            mCleanupTask = null;
+            cleanupTask.run();
         }
         clear();
     }
@@ -0,0 +1,112 @@
+// Copyright (c) 2013 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.content.common;
+
+import android.os.Debug;
+import android.os.Debug.MemoryInfo;
+
+/**
+ * Reads the browser process PSS on a dedicated thread at a fixed rate, so that
+ * {@link PerfTraceEvent} can tag events with memory usage without calling
+ * {@link Debug#getMemoryInfo(MemoryInfo)} on the thread being measured.
+ */
+class PerfMemorySampler implements Runnable {
+    /** The name of the counter track that samples are written to. */
+    static final String COUNTER_TRACE_NAME = "PSS";
+
+    /**
+     * An immutable PSS reading.
+     */
+    static class Sample {
+        final long timestampUs;
+        final int nativePss;
+        final int dalvikPss;
+        final int otherPss;
+
+        Sample(long timestampUs, MemoryInfo memoryInfo) {
+            this.timestampUs = timestampUs;
+            nativePss = memoryInfo.nativePss;
+            dalvikPss = memoryInfo.dalvikPss;
+            otherPss = memoryInfo.otherPss;
+        }
+
+        int getTotalPss() {
+            return nativePss + dalvikPss + otherPss;
+        }
+    }
+
+    private final PerfTraceRecorder mRecorder;
+    private final long mIntervalMs;
+    private final boolean mEmitCounters;
+    private final Thread mThread;
+    private final Object mLock = new Object();
+    private boolean mStopping = false;
+    private volatile Sample mLatestSample;
+
+    /**
+     * Takes a first sample on the calling thread and starts sampling in the background.
+     * @param recorder The recorder counter events are written to.
+     * @param intervalMs The time between two samples.
+     * @param emitCounters Whether every sample is also written as a counter event.
+     */
+    PerfMemorySampler(PerfTraceRecorder recorder, long intervalMs, boolean emitCounters) {
+        mRecorder = recorder;
+        mIntervalMs = intervalMs;
+        mEmitCounters = emitCounters;
+        takeSample();
+        mThread = new Thread(this, "PerfMemorySampler");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * @return The most recent sample. Never null.
+     */
+    Sample getLatestSample() {
+        return mLatestSample;
+    }
+
+    /**
+     * Stops sampling and waits for the sampling thread to exit.
+     */
+    void stop() {
+        synchronized (mLock) {
+            mStopping = true;
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            // The thread exits on its own shortly.
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (mLock) {
+                if (mStopping) return;
+                try {
+                    mLock.wait(mIntervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (mStopping) return;
+            }
+            takeSample();
+        }
+    }
+
+    private void takeSample() {
+        MemoryInfo memoryInfo = new MemoryInfo();
+        Debug.getMemoryInfo(memoryInfo);
+        Sample sample = new Sample(mRecorder.now(), memoryInfo);
+        mLatestSample = sample;
+        if (mEmitCounters) {
+            mRecorder.recordMemoryCounter(COUNTER_TRACE_NAME, sample.timestampUs,
+                    sample.nativePss, sample.dalvikPss, sample.otherPss);
+        }
+    }
+}
@@ -4,20 +4,12 @@
 
 package org.chromium.content.common;
 
-import android.os.Debug;
 import android.os.Debug.MemoryInfo;
-import android.util.Log;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.PrintStream;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * PerfTraceEvent can be used like TraceEvent, but is intended for
@@ -28,8 +20,10 @@ import java.util.List;
  * performance measurements, they act the same.  However,
  * PerfTraceEvents can be enabled even when TraceEvent is not.
  *
- * Unlike TraceEvent, PerfTraceEvent data is sent to the system log,
- * not to a trace file.
+ * Unlike TraceEvent, PerfTraceEvent data is sent to STDOUT or to the
+ * file given to {@link #setOutputFile(File)}, not to the system trace.
+ * Events are streamed out while tracing runs (see {@link PerfTraceRecorder}),
+ * so long traces do not accumulate in memory.
  *
  * Performance events need to have very specific names so we find
  * the right ones.  For example, we specify the name exactly in
@@ -41,68 +35,81 @@ public class PerfTraceEvent {
     private static final String MEMORY_TRACE_NAME_SUFFIX = "_BZR_PSS";
     private static File sOutputFile = null;
 
-    /** The event types understood by the perf trace scripts. */
-    private enum EventType {
-        START("S"),
-        FINISH("F"),
-        INSTANT("I");
-
-        // The string understood by the trace scripts.
-        private final String mTypeStr;
-
-        EventType(String typeStr) {
-            mTypeStr = typeStr;
-        }
-
-        @Override
-        public String toString() {
-            return mTypeStr;
-        }
+    /**
+     * Supplies aggregate values, such as histogram percentiles, that are written as a single
+     * counter ("C") event at the end of every perf trace dump.
+     */
+    public interface SummaryProvider {
+        /** @return The name of the counter event. */
+        String getSummaryName();
+
+        /**
+         * @return The values to write as the counter event's arguments, or null to leave the
+         *         event out of this dump.
+         */
+        Map<String, Long> getSummaryValues();
     }
 
-    private static boolean sEnabled = false;
-    private static boolean sTrackTiming = true;
-    private static boolean sTrackMemory = false;
+    private static final List<SummaryProvider> sSummaryProviders =
+            new CopyOnWriteArrayList<SummaryProvider>();
 
-    // A list of performance trace event strings.
-    // Events are stored as a JSON dict much like TraceEvent.
-    // E.g. timestamp is in microseconds.
-    private static JSONArray sPerfTraceStrings;
+    // The recorder of the current session, or null when perf tracing is disabled. The trace
+    // methods read this without locking; it is only replaced under the class lock.
+    private static volatile PerfTraceRecorder sRecorder = null;
+    private static volatile boolean sTrackTiming = true;
+    private static volatile boolean sTrackMemory = false;
 
-    // A filter for performance tracing.  Only events that match a
-    // string in the list are saved.  Presence of a filter does not
-    // necessarily mean perf tracing is enabled.
-    private static List<String> sFilter;
+    // Memory is read by a sampler thread while both tracing and memory tracking are enabled.
+    // Guarded by the class lock, except that trace methods read sMemorySampler without it.
+    private static final long DEFAULT_MEMORY_SAMPLING_INTERVAL_MS = 100;
+    private static long sMemorySamplingIntervalMs = DEFAULT_MEMORY_SAMPLING_INTERVAL_MS;
+    private static boolean sEmitMemoryCounters = false;
+    private static volatile PerfMemorySampler sMemorySampler = null;
 
-    // Nanosecond start time of performance tracing.
-    private static long sBeginNanoTime;
+    // A filter for performance tracing.  Only events that match one
+    // of its rules are saved.  Presence of a filter does not
+    // necessarily mean perf tracing is enabled. The filter is
+    // immutable and replaced as a whole, so it is read without locking.
+    private static volatile PerfTraceFilter sFilter;
 
     /**
      * Specifies what event names will be tracked.
      *
-     * @param strings Event names we will record.
+     * Besides exact names, a rule can end with '*' to match every name with that prefix, or
+     * use '*' and '?' anywhere as glob wildcards.
+     *
+     * @param strings Event names or name patterns we will record.
      */
     public static synchronized void setFilter(List<String> strings) {
-        sFilter = new LinkedList<String>(strings);
+        sFilter = new PerfTraceFilter(strings);
+    }
+
+    /**
+     * Registers a provider whose summary is appended to every perf trace dump, regardless of the
+     * filter.
+     */
+    public static void addSummaryProvider(SummaryProvider provider) {
+        sSummaryProviders.add(provider);
     }
 
     /**
      * Enable or disable perf tracing.
-     * Disabling of perf tracing will dump trace data to the system log.
+     * Disabling of perf tracing will write out the remaining trace data and close the output.
      */
     public static synchronized void setEnabled(boolean enabled) {
-        if (sEnabled == enabled) {
+        if ((sRecorder != null) == enabled) {
             return;
         }
         if (enabled) {
-            sBeginNanoTime = System.nanoTime();
-            sPerfTraceStrings = new JSONArray();
+            sRecorder = new PerfTraceRecorder(sOutputFile, sSummaryProviders);
+            updateMemorySampler();
         } else {
-            dumpPerf();
-            sPerfTraceStrings = null;
+            PerfTraceRecorder recorder = sRecorder;
+            sRecorder = null;
+            updateMemorySampler();
+            recorder.stop();
             sFilter = null;
         }
-        sEnabled = enabled;
     }
 
     /**
@@ -113,13 +120,63 @@ public class PerfTraceEvent {
      *
      * <p>
      * By enabling this feature, an additional perf event containing the memory usage will be
-     * logged whenever {@link #instant(String)}, {@link #begin(String)}, or {@link #end(String)}
-     * is called.
+     * logged whenever {@link #begin(String)} or {@link #end(String)} is called. The memory
+     * usage is the most recent reading of a sampler thread, see
+     * {@link #setMemorySamplingIntervalMs(long)}.
      *
      * @param enabled Whether to enable memory tracking for all perf events.
      */
     public static synchronized void setMemoryTrackingEnabled(boolean enabled) {
         sTrackMemory = enabled;
+        updateMemorySampler();
+    }
+
+    /**
+     * Sets how often the memory sampler reads the browser process PSS while memory tracking is
+     * enabled. Shorter intervals tag events with fresher samples, at a higher background cost.
+     *
+     * @param intervalMs The time between two samples, in milliseconds.
+     */
+    public static synchronized void setMemorySamplingIntervalMs(long intervalMs) {
+        if (intervalMs <= 0) throw new IllegalArgumentException("Invalid interval " + intervalMs);
+        if (sMemorySamplingIntervalMs == intervalMs) return;
+        sMemorySamplingIntervalMs = intervalMs;
+        restartMemorySampler();
+    }
+
+    /**
+     * Enables writing every memory sample as a counter ("C") event with separate native,
+     * dalvik and other PSS values, so memory shows up as its own track next to the timings.
+     *
+     * @param enabled Whether to write memory samples as counter events.
+     */
+    public static synchronized void setMemoryCounterEventsEnabled(boolean enabled) {
+        if (sEmitMemoryCounters == enabled) return;
+        sEmitMemoryCounters = enabled;
+        restartMemorySampler();
+    }
+
+    // Starts or stops the memory sampler to match the current settings. Called with the class
+    // lock held.
+    private static void updateMemorySampler() {
+        boolean needed = sRecorder != null && sTrackMemory;
+        if (needed && sMemorySampler == null) {
+            sMemorySampler = new PerfMemorySampler(sRecorder, sMemorySamplingIntervalMs,
+                    sEmitMemoryCounters);
+        } else if (!needed && sMemorySampler != null) {
+            PerfMemorySampler sampler = sMemorySampler;
+            sMemorySampler = null;
+            sampler.stop();
+        }
+    }
+
+    // Applies changed sampler settings to a running sampler. Called with the class lock held.
+    private static void restartMemorySampler() {
+        if (sMemorySampler == null) return;
+        PerfMemorySampler sampler = sMemorySampler;
+        sMemorySampler = null;
+        sampler.stop();
+        updateMemorySampler();
     }
 
     /**
@@ -143,19 +200,20 @@ public class PerfTraceEvent {
      * It is safe to call trace methods without checking if PerfTraceEvent
      * is enabled.
      */
-    public static synchronized boolean enabled() {
-        return sEnabled;
+    public static boolean enabled() {
+        return sRecorder != null;
     }
 
     /**
      * Record an "instant" perf trace event.  E.g. "screen update happened".
      */
-    public static synchronized void instant(String name) {
+    public static void instant(String name) {
         // Instant doesn't really need/take an event id, but this should be okay.
         final long eventId = name.hashCode();
         TraceEvent.instant(name);
-        if (sEnabled && matchesFilter(name)) {
-            savePerfString(name, eventId, EventType.INSTANT, false);
+        PerfTraceRecorder recorder = sRecorder;
+        if (recorder != null && matchesFilter(name)) {
+            savePerfString(recorder, name, eventId, PerfTraceRecorder.PHASE_INSTANT, false);
         }
     }
 
@@ -164,18 +222,19 @@ public class PerfTraceEvent {
      * Record an "begin" perf trace event.
      * Begin trace events should have a matching end event.
      */
-    public static synchronized void begin(String name) {
+    public static void begin(String name) {
         final long eventId = name.hashCode();
         TraceEvent.startAsync(name, eventId);
-        if (sEnabled && matchesFilter(name)) {
+        PerfTraceRecorder recorder = sRecorder;
+        if (recorder != null && matchesFilter(name)) {
             // Done before calculating the starting perf data to ensure calculating the memory usage
             // does not influence the timing data.
             if (sTrackMemory) {
-                savePerfString(makeMemoryTraceNameFromTimingName(name), eventId, EventType.START,
-                        true);
+                savePerfString(recorder, makeMemoryTraceNameFromTimingName(name), eventId,
+                        PerfTraceRecorder.PHASE_START, true);
             }
             if (sTrackTiming) {
-                savePerfString(name, eventId, EventType.START, false);
+                savePerfString(recorder, name, eventId, PerfTraceRecorder.PHASE_START, false);
             }
         }
     }
@@ -185,18 +244,19 @@ public class PerfTraceEvent {
      * time delta between begin and end is usually interesting to
      * graph code.
      */
-    public static synchronized void end(String name) {
+    public static void end(String name) {
         final long eventId = name.hashCode();
         TraceEvent.finishAsync(name, eventId);
-        if (sEnabled && matchesFilter(name)) {
+        PerfTraceRecorder recorder = sRecorder;
+        if (recorder != null && matchesFilter(name)) {
             if (sTrackTiming) {
-                savePerfString(name, eventId, EventType.FINISH, false);
+                savePerfString(recorder, name, eventId, PerfTraceRecorder.PHASE_FINISH, false);
             }
             // Done after calculating the ending perf data to ensure calculating the memory usage
             // does not influence the timing data.
             if (sTrackMemory) {
-                savePerfString(makeMemoryTraceNameFromTimingName(name), eventId, EventType.FINISH,
-                        true);
+                savePerfString(recorder, makeMemoryTraceNameFromTimingName(name), eventId,
+                        PerfTraceRecorder.PHASE_FINISH, true);
             }
         }
     }
@@ -205,17 +265,19 @@ public class PerfTraceEvent {
      * Record an "begin" memory trace event.
      * Begin trace events should have a matching end event.
      */
-    public static synchronized void begin(String name, MemoryInfo memoryInfo) {
+    public static void begin(String name, MemoryInfo memoryInfo) {
         final long eventId = name.hashCode();
         TraceEvent.startAsync(name, eventId);
-        if (sEnabled && matchesFilter(name)) {
+        PerfTraceRecorder recorder = sRecorder;
+        if (recorder != null && matchesFilter(name)) {
             // Done before calculating the starting perf data to ensure calculating the memory usage
             // does not influence the timing data.
-            long timestampUs = (System.nanoTime() - sBeginNanoTime) / 1000;
-            savePerfString(makeMemoryTraceNameFromTimingName(name), eventId, EventType.START,
-                    timestampUs, memoryInfo);
+            long timestampUs = recorder.now();
+            recorder.record(PerfTraceRecorder.PHASE_START,
+                    makeMemoryTraceNameFromTimingName(name), eventId, timestampUs,
+                    getPss(memoryInfo));
             if (sTrackTiming) {
-                savePerfString(name, eventId, EventType.START, false);
+                savePerfString(recorder, name, eventId, PerfTraceRecorder.PHASE_START, false);
             }
         }
     }
@@ -225,18 +287,20 @@ public class PerfTraceEvent {
      * memory usage delta between begin and end is usually interesting to
      * graph code.
      */
-    public static synchronized void end(String name, MemoryInfo memoryInfo) {
+    public static void end(String name, MemoryInfo memoryInfo) {
         final long eventId = name.hashCode();
         TraceEvent.finishAsync(name, eventId);
-        if (sEnabled && matchesFilter(name)) {
+        PerfTraceRecorder recorder = sRecorder;
+        if (recorder != null && matchesFilter(name)) {
             if (sTrackTiming) {
-                savePerfString(name, eventId, EventType.FINISH, false);
+                savePerfString(recorder, name, eventId, PerfTraceRecorder.PHASE_FINISH, false);
             }
             // Done after calculating the instant perf data to ensure calculating the memory usage
             // does not influence the timing data.
-            long timestampUs = (System.nanoTime() - sBeginNanoTime) / 1000;
-            savePerfString(makeMemoryTraceNameFromTimingName(name), eventId, EventType.FINISH,
-                    timestampUs, memoryInfo);
+            long timestampUs = recorder.now();
+            recorder.record(PerfTraceRecorder.PHASE_FINISH,
+                    makeMemoryTraceNameFromTimingName(name), eventId, timestampUs,
+                    getPss(memoryInfo));
         }
     }
 
@@ -245,55 +309,34 @@ public class PerfTraceEvent {
      * @return True if the name matches the allowed filter; else false.
      */
     private static boolean matchesFilter(String name) {
-        return sFilter != null ? sFilter.contains(name) : false;
+        PerfTraceFilter filter = sFilter;
+        return filter != null ? filter.matches(name) : false;
     }
 
     /**
-     * Save a perf trace event as a JSON dict.  The format mirrors a TraceEvent dict.
+     * Save a perf trace event.  The output format mirrors a TraceEvent dict.
      *
+     * @param recorder The recorder of the current session
      * @param name The trace data
      * @param id The id of the event
-     * @param type the type of trace event (I, S, F)
-     * @param includeMemory Whether to include current browser process memory usage in the trace.
+     * @param phase the type of trace event (PerfTraceRecorder.PHASE_*)
+     * @param includeMemory Whether to include the latest sampled browser process memory usage in
+     *                      the trace.
      */
-    private static void savePerfString(String name, long id, EventType type,
-            boolean includeMemory) {
-        long timestampUs = (System.nanoTime() - sBeginNanoTime) / 1000;
-        MemoryInfo memInfo = null;
-        if (includeMemory) {
-            memInfo = new MemoryInfo();
-            Debug.getMemoryInfo(memInfo);
+    private static void savePerfString(PerfTraceRecorder recorder, String name, long id,
+            byte phase, boolean includeMemory) {
+        long timestampUs = recorder.now();
+        int pss = PerfTraceRecorder.NO_MEMORY;
+        PerfMemorySampler sampler = sMemorySampler;
+        if (includeMemory && sampler != null) {
+            pss = sampler.getLatestSample().getTotalPss();
         }
-        savePerfString(name, id, type, timestampUs, memInfo);
+        recorder.record(phase, name, id, timestampUs, pss);
     }
 
-    /**
-     * Save a perf trace event as a JSON dict.  The format mirrors a TraceEvent dict.
-     *
-     * @param name The trace data
-     * @param id The id of the event
-     * @param type the type of trace event (I, S, F)
-     * @param timestampUs The time stamp at which this event was recorded
-     * @param memoryInfo Memory details to be included in this perf string, null if
-     *                   no memory details are to be included.
-     */
-    private static void savePerfString(String name, long id, EventType type, long timestampUs,
-            MemoryInfo memoryInfo) {
-        try {
-            JSONObject traceObj = new JSONObject();
-            traceObj.put("cat", "Java");
-            traceObj.put("ts", timestampUs);
-            traceObj.put("ph", type);
-            traceObj.put("name", name);
-            traceObj.put("id", id);
-            if (memoryInfo != null) {
-                int pss = memoryInfo.nativePss + memoryInfo.dalvikPss + memoryInfo.otherPss;
-                traceObj.put("mem", pss);
-            }
-            sPerfTraceStrings.put(traceObj);
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
+    private static int getPss(MemoryInfo memoryInfo) {
+        if (memoryInfo == null) return PerfTraceRecorder.NO_MEMORY;
+        return memoryInfo.nativePss + memoryInfo.dalvikPss + memoryInfo.otherPss;
     }
 
     /**
@@ -327,8 +370,9 @@ public class PerfTraceEvent {
     /**
      * Sets a file to dump the results to.  If {@code file} is {@code null}, it will be dumped
      * to STDOUT, otherwise the JSON performance data will be appended to {@code file}.  This should
-     * be called before the performance run starts.  When {@link #setEnabled(boolean)} is called
-     * with {@code false}, the perf data will be dumped.
+     * be called before the performance run starts.  Events are written out while the run is in
+     * progress, and the output is completed when {@link #setEnabled(boolean)} is called with
+     * {@code false}.
      *
      * @param file Which file to append the performance data to.  If {@code null}, the performance
      *             data will be sent to STDOUT.
@@ -336,31 +380,4 @@ public class PerfTraceEvent {
     public static synchronized void setOutputFile(File file) {
         sOutputFile = file;
     }
-
-    /**
-     * Dump all performance data we have saved up to the log.
-     * Output as JSON for parsing convenience.
-     */
-    private static void dumpPerf() {
-        String json = sPerfTraceStrings.toString();
-
-        if (sOutputFile == null) {
-            System.out.println(json);
-        } else {
-            try {
-                PrintStream stream = new PrintStream(new FileOutputStream(sOutputFile, true));
-                try {
-                    stream.print(json);
-                } finally {
-                    try {
-                        stream.close();
-                    } catch (Exception ex) {
-                        Log.e("PerfTraceEvent", "Unable to close perf trace output file.");
-                    }
-                }
-            } catch (FileNotFoundException ex) {
-                Log.e("PerfTraceEvent", "Unable to dump perf trace data to output file.");
-            }
-        }
-    }
 }
@@ -0,0 +1,150 @@
+// Copyright (c) 2013 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.content.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable, compiled set of trace name rules used by {@link PerfTraceEvent}.
+ *
+ * Three kinds of rules are supported:
+ * <ul>
+ * <li>exact names, e.g. "PageLoad", looked up in a hash set;</li>
+ * <li>prefixes, written with a single trailing '*', e.g. "Scroll*", matched with a trie;</li>
+ * <li>globs, any other rule containing '*' or '?', e.g. "*_BZR_PSS", matched with a regular
+ *     expression.</li>
+ * </ul>
+ * Matching never locks, so a filter can be shared by all tracing threads. Glob rules are matched
+ * with one Matcher per rule and thread, created on the first glob match a thread makes and then
+ * reused, so matching only allocates once per thread.
+ */
+class PerfTraceFilter {
+    private final HashSet<String> mExactNames = new HashSet<String>();
+    private final TrieNode mPrefixes = new TrieNode();
+    private final boolean mHasPrefixes;
+    private final Pattern[] mGlobs;
+    private final ThreadLocal<Matcher[]> mGlobMatchers = new ThreadLocal<Matcher[]>() {
+        @Override
+        protected Matcher[] initialValue() {
+            Matcher[] matchers = new Matcher[mGlobs.length];
+            for (int i = 0; i < matchers.length; i++) {
+                matchers[i] = mGlobs[i].matcher("");
+            }
+            return matchers;
+        }
+    };
+
+    /**
+     * A node of the prefix trie. The children are sorted by character.
+     */
+    private static class TrieNode {
+        char[] mChars = new char[0];
+        TrieNode[] mChildren = new TrieNode[0];
+        boolean mTerminal;
+
+        TrieNode child(char c) {
+            int index = Arrays.binarySearch(mChars, c);
+            return index >= 0 ? mChildren[index] : null;
+        }
+
+        TrieNode addChild(char c) {
+            int index = Arrays.binarySearch(mChars, c);
+            if (index >= 0) return mChildren[index];
+            int insertion = -index - 1;
+            char[] chars = new char[mChars.length + 1];
+            TrieNode[] children = new TrieNode[mChildren.length + 1];
+            System.arraycopy(mChars, 0, chars, 0, insertion);
+            System.arraycopy(mChildren, 0, children, 0, insertion);
+            chars[insertion] = c;
+            children[insertion] = new TrieNode();
+            System.arraycopy(mChars, insertion, chars, insertion + 1, mChars.length - insertion);
+            System.arraycopy(mChildren, insertion, children, insertion + 1,
+                    mChildren.length - insertion);
+            mChars = chars;
+            mChildren = children;
+            return children[insertion];
+        }
+    }
+
+    PerfTraceFilter(Collection<String> rules) {
+        List<Pattern> globs = new ArrayList<Pattern>();
+        boolean hasPrefixes = false;
+        for (String rule : rules) {
+            int wildcard = indexOfWildcard(rule);
+            if (wildcard < 0) {
+                mExactNames.add(rule);
+            } else if (wildcard == rule.length() - 1 && rule.charAt(wildcard) == '*') {
+                addPrefix(rule.substring(0, wildcard));
+                hasPrefixes = true;
+            } else {
+                globs.add(compileGlob(rule));
+            }
+        }
+        mHasPrefixes = hasPrefixes;
+        mGlobs = globs.toArray(new Pattern[globs.size()]);
+    }
+
+    /**
+     * @return True if the name matches any of the rules.
+     */
+    boolean matches(String name) {
+        if (mExactNames.contains(name)) return true;
+        if (mHasPrefixes && matchesPrefix(name)) return true;
+        if (mGlobs.length == 0) return false;
+        for (Matcher glob : mGlobMatchers.get()) {
+            if (glob.reset(name).matches()) return true;
+        }
+        return false;
+    }
+
+    private boolean matchesPrefix(String name) {
+        TrieNode node = mPrefixes;
+        if (node.mTerminal) return true;
+        for (int i = 0; i < name.length(); i++) {
+            node = node.child(name.charAt(i));
+            if (node == null) return false;
+            if (node.mTerminal) return true;
+        }
+        return false;
+    }
+
+    private void addPrefix(String prefix) {
+        TrieNode node = mPrefixes;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.addChild(prefix.charAt(i));
+        }
+        node.mTerminal = true;
+    }
+
+    private static int indexOfWildcard(String rule) {
+        for (int i = 0; i < rule.length(); i++) {
+            char c = rule.charAt(i);
+            if (c == '*' || c == '?') return i;
+        }
+        return -1;
+    }
+
+    private static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?') continue;
+            if (i > literalStart) regex.append(Pattern.quote(glob.substring(literalStart, i)));
+            regex.append(c == '*' ? ".*" : ".");
+            literalStart = i + 1;
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+}
@@ -0,0 +1,334 @@
+// Copyright (c) 2013 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.content.common;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records the events of a single {@link PerfTraceEvent} session and streams them to the output
+ * in the trace event JSON format.
+ *
+ * Every recording thread owns a preallocated ring buffer of primitive fields, so recording an
+ * event takes no lock and allocates nothing. A background thread drains the buffers every
+ * {@link #FLUSH_INTERVAL_MS}, or as soon as a buffer is half full, and appends the events to the
+ * output, so memory use stays bounded however long the trace runs. If a thread records faster
+ * than the writer drains, the excess events are dropped and counted instead of growing the
+ * buffer.
+ */
+class PerfTraceRecorder implements Runnable {
+    private static final String TAG = "PerfTraceRecorder";
+
+    /** Event phases, as understood by the perf trace scripts. */
+    static final byte PHASE_START = 0;
+    static final byte PHASE_FINISH = 1;
+    static final byte PHASE_INSTANT = 2;
+    static final byte PHASE_COUNTER = 3;
+    // A counter event carrying native, dalvik and other PSS. Written as a "C" event.
+    static final byte PHASE_MEMORY_COUNTER = 4;
+    private static final String[] PHASE_STRINGS = { "S", "F", "I", "C", "C" };
+
+    /** Marks an event without a memory sample. */
+    static final int NO_MEMORY = -1;
+
+    private static final int BUFFER_CAPACITY = 4096;  // Must be a power of two.
+    private static final long FLUSH_INTERVAL_MS = 500;
+
+    // Names are interned once per process and referred to by index from the ring buffers. The
+    // quoted form is what the writer emits. sQuotedNames is only replaced under sNameLock.
+    private static final Object sNameLock = new Object();
+    private static final ConcurrentHashMap<String, Integer> sNameIds =
+            new ConcurrentHashMap<String, Integer>();
+    private static volatile String[] sQuotedNames = new String[64];
+    private static int sNameCount = 0;
+
+    /**
+     * A single-producer, single-consumer ring of events. Only the owning thread adds events and
+     * only the writer thread drains them.
+     */
+    private static class EventBuffer {
+        final PerfTraceRecorder mRecorder;
+        final long[] mTimestamps = new long[BUFFER_CAPACITY];
+        final long[] mIds = new long[BUFFER_CAPACITY];
+        final int[] mNameIds = new int[BUFFER_CAPACITY];
+        // Total PSS, or native PSS for memory counter events.
+        final int[] mMemory = new int[BUFFER_CAPACITY];
+        // Only used by memory counter events.
+        final int[] mDalvikPss = new int[BUFFER_CAPACITY];
+        final int[] mOtherPss = new int[BUFFER_CAPACITY];
+        final byte[] mPhases = new byte[BUFFER_CAPACITY];
+        volatile long mWriteIndex = 0;
+        volatile long mReadIndex = 0;
+        volatile long mDropped = 0;
+
+        EventBuffer(PerfTraceRecorder recorder) {
+            mRecorder = recorder;
+        }
+
+        void add(byte phase, int nameId, long id, long timestampUs, int memory,
+                int dalvikPss, int otherPss) {
+            long write = mWriteIndex;
+            long used = write - mReadIndex;
+            if (used >= BUFFER_CAPACITY) {
+                mDropped++;
+                return;
+            }
+            if (used == BUFFER_CAPACITY / 2) mRecorder.requestFlush();
+            int slot = (int) (write & (BUFFER_CAPACITY - 1));
+            mPhases[slot] = phase;
+            mNameIds[slot] = nameId;
+            mIds[slot] = id;
+            mTimestamps[slot] = timestampUs;
+            mMemory[slot] = memory;
+            mDalvikPss[slot] = dalvikPss;
+            mOtherPss[slot] = otherPss;
+            mWriteIndex = write + 1;
+        }
+    }
+
+    private static final ThreadLocal<EventBuffer> sThreadBuffer = new ThreadLocal<EventBuffer>();
+
+    private final long mBeginNanoTime;
+    private final List<EventBuffer> mBuffers = new CopyOnWriteArrayList<EventBuffer>();
+    private final List<PerfTraceEvent.SummaryProvider> mSummaryProviders;
+    private final PrintStream mOutput;
+    private final boolean mOwnsOutput;
+    private final Thread mWriterThread;
+    private final Object mWriterLock = new Object();
+    private final StringBuilder mLine = new StringBuilder();
+    private boolean mStopping = false;
+    private boolean mFlushRequested = false;
+    private boolean mFirstEvent = true;
+
+    /**
+     * Starts a recording session.
+     * @param outputFile The file to append the trace to, or null for STDOUT.
+     * @param summaryProviders The providers whose summaries are written when the session stops.
+     */
+    PerfTraceRecorder(File outputFile, List<PerfTraceEvent.SummaryProvider> summaryProviders) {
+        mBeginNanoTime = System.nanoTime();
+        mSummaryProviders = summaryProviders;
+        PrintStream output = null;
+        if (outputFile == null) {
+            output = System.out;
+        } else {
+            try {
+                output = new PrintStream(new BufferedOutputStream(
+                        new FileOutputStream(outputFile, true)));
+            } catch (FileNotFoundException ex) {
+                Log.e(TAG, "Unable to dump perf trace data to output file.");
+            }
+        }
+        mOutput = output;
+        mOwnsOutput = outputFile != null;
+        if (mOutput != null) mOutput.print('[');
+
+        mWriterThread = new Thread(this, "PerfTraceWriter");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * @return The number of microseconds since the session started.
+     */
+    long now() {
+        return (System.nanoTime() - mBeginNanoTime) / 1000;
+    }
+
+    /**
+     * Records an event from the calling thread.
+     */
+    void record(byte phase, String name, long id, long timestampUs, int memory) {
+        getThreadBuffer().add(phase, internName(name), id, timestampUs, memory, 0, 0);
+    }
+
+    /**
+     * Records a counter event with the native, dalvik and other PSS from the calling thread.
+     */
+    void recordMemoryCounter(String name, long timestampUs, int nativePss, int dalvikPss,
+            int otherPss) {
+        getThreadBuffer().add(PHASE_MEMORY_COUNTER, internName(name), 0, timestampUs, nativePss,
+                dalvikPss, otherPss);
+    }
+
+    private EventBuffer getThreadBuffer() {
+        EventBuffer buffer = sThreadBuffer.get();
+        if (buffer == null || buffer.mRecorder != this) {
+            buffer = new EventBuffer(this);
+            sThreadBuffer.set(buffer);
+            mBuffers.add(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Writes the remaining events and the summaries, then closes the output. Events recorded
+     * while or after this runs may be lost.
+     */
+    void stop() {
+        synchronized (mWriterLock) {
+            mStopping = true;
+            mWriterLock.notifyAll();
+        }
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for the perf trace writer.");
+        }
+
+        drain();
+        long dropped = 0;
+        for (EventBuffer buffer : mBuffers) {
+            dropped += buffer.mDropped;
+        }
+        if (dropped > 0) {
+            Log.w(TAG, "Dropped " + dropped + " perf trace events.");
+        }
+        long timestampUs = now();
+        for (PerfTraceEvent.SummaryProvider provider : mSummaryProviders) {
+            Map<String, Long> values = provider.getSummaryValues();
+            if (values == null) continue;
+            writeCounter(provider.getSummaryName(), timestampUs,
+                    new JSONObject(values).toString());
+        }
+        if (mOutput == null) return;
+        mOutput.print(']');
+        // Keep STDOUT line terminated, appended files are left as they were.
+        if (!mOwnsOutput) mOutput.println();
+        mOutput.flush();
+        if (mOwnsOutput) {
+            mOutput.close();
+        }
+    }
+
+    // Wakes the writer thread up before its next scheduled flush.
+    private void requestFlush() {
+        synchronized (mWriterLock) {
+            mFlushRequested = true;
+            mWriterLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (mWriterLock) {
+                if (mStopping) return;
+                if (!mFlushRequested) {
+                    try {
+                        mWriterLock.wait(FLUSH_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                mFlushRequested = false;
+                if (mStopping) return;
+            }
+            drain();
+        }
+    }
+
+    // Writes every event currently in the buffers. Only called by one thread at a time: the
+    // writer thread, or stop() once the writer thread has exited.
+    private void drain() {
+        String[] names = sQuotedNames;
+        for (EventBuffer buffer : mBuffers) {
+            long read = buffer.mReadIndex;
+            long write = buffer.mWriteIndex;
+            if (read == write) continue;
+            if (mOutput != null) {
+                for (long i = read; i < write; i++) {
+                    int slot = (int) (i & (BUFFER_CAPACITY - 1));
+                    int nameId = buffer.mNameIds[slot];
+                    if (nameId >= names.length) names = sQuotedNames;
+                    if (buffer.mPhases[slot] == PHASE_MEMORY_COUNTER) {
+                        writeMemoryCounter(names[nameId], buffer.mTimestamps[slot],
+                                buffer.mMemory[slot], buffer.mDalvikPss[slot],
+                                buffer.mOtherPss[slot]);
+                        continue;
+                    }
+                    writeEvent(buffer.mPhases[slot], names[nameId], buffer.mIds[slot],
+                            buffer.mTimestamps[slot], buffer.mMemory[slot]);
+                }
+            }
+            buffer.mReadIndex = write;
+        }
+        if (mOutput != null) mOutput.flush();
+    }
+
+    private void writeEvent(byte phase, String quotedName, long id, long timestampUs,
+            int memory) {
+        StringBuilder line = startEvent(phase, quotedName, timestampUs);
+        line.append(",\"id\":").append(id);
+        if (memory != NO_MEMORY) {
+            line.append(",\"mem\":").append(memory);
+        }
+        line.append('}');
+        mOutput.append(line);
+    }
+
+    private void writeMemoryCounter(String quotedName, long timestampUs, int nativePss,
+            int dalvikPss, int otherPss) {
+        StringBuilder line = startEvent(PHASE_MEMORY_COUNTER, quotedName, timestampUs);
+        line.append(",\"args\":{\"native\":").append(nativePss);
+        line.append(",\"dalvik\":").append(dalvikPss);
+        line.append(",\"other\":").append(otherPss).append("}}");
+        mOutput.append(line);
+    }
+
+    /**
+     * Writes a counter event. Only called from the writer thread, or from stop().
+     * @param argsJson The counter values, as a JSON dictionary.
+     */
+    private void writeCounter(String name, long timestampUs, String argsJson) {
+        if (mOutput == null) return;
+        StringBuilder line = startEvent(PHASE_COUNTER, JSONObject.quote(name), timestampUs);
+        line.append(",\"args\":").append(argsJson).append('}');
+        mOutput.append(line);
+    }
+
+    private StringBuilder startEvent(byte phase, String quotedName, long timestampUs) {
+        StringBuilder line = mLine;
+        line.setLength(0);
+        if (!mFirstEvent) line.append(',');
+        mFirstEvent = false;
+        line.append("{\"cat\":\"Java\",\"ts\":").append(timestampUs);
+        line.append(",\"ph\":\"").append(PHASE_STRINGS[phase]).append('"');
+        line.append(",\"name\":").append(quotedName);
+        return line;
+    }
+
+    private static int internName(String name) {
+        Integer id = sNameIds.get(name);
+        if (id != null) return id;
+        synchronized (sNameLock) {
+            id = sNameIds.get(name);
+            if (id != null) return id;
+            String[] names = sQuotedNames;
+            if (sNameCount == names.length) {
+                String[] grown = new String[names.length * 2];
+                System.arraycopy(names, 0, grown, 0, names.length);
+                names = grown;
+            }
+            names[sNameCount] = JSONObject.quote(name);
+            // Publish the array before the id, so a reader that sees the id sees the name.
+            sQuotedNames = names;
+            id = sNameCount++;
+            sNameIds.put(name, id);
+            return id;
+        }
+    }
+}
@@ -4,14 +4,22 @@
 
 package org.chromium.media;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.graphics.SurfaceTexture.OnFrameAvailableListener;
 import android.hardware.Camera;
 import android.hardware.Camera.PreviewCallback;
+import android.hardware.display.DisplayManager;
 import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.view.OrientationEventListener;
 import android.view.Surface;
 import android.view.WindowManager;
 
@@ -38,7 +46,8 @@ public class VideoCapture implements PreviewCallback, OnFrameAvailableListener {
     // True when native code has started capture.
     private boolean mIsRunning = false;
 
-    private static final int NUM_CAPTURE_BUFFERS = 3;
+    private static final int DEFAULT_NUM_CAPTURE_BUFFERS = 3;
+    private int mNumCaptureBuffers = DEFAULT_NUM_CAPTURE_BUFFERS;
     private int mExpectedFrameSize = 0;
     private int mId = 0;
     // Native callback context variable.
@@ -51,6 +60,29 @@ public class VideoCapture implements PreviewCallback, OnFrameAvailableListener {
     private int mCameraFacing = 0;
     private int mDeviceOrientation = 0;
 
+    // The frame transform for the current device orientation: the rotation in degrees ORed
+    // with the FRAME_FLIP_* bits. Recomputed by refreshFrameTransform() when the display
+    // rotates rather than for every frame, and packed into one field so that every frame sees
+    // a consistent transform.
+    private static final int FRAME_ROTATION_MASK = 0xffff;
+    private static final int FRAME_FLIP_VERTICAL = 1 << 16;
+    private static final int FRAME_FLIP_HORIZONTAL = 1 << 17;
+    private volatile int mFrameTransform = 0;
+    // Report display rotations while capturing: a DisplayListener on JB MR1 and later, and a
+    // configuration change receiver plus the orientation sensor before that.
+    private Object mDisplayListener = null;
+    private BroadcastReceiver mConfigurationReceiver = null;
+    private OrientationEventListener mOrientationListener = null;
+
+    // Frame statistics, reset by startCapture(). Only updated on the preview callback thread.
+    private volatile long mDeliveredFrameCount = 0;
+    private volatile long mDroppedFrameCount = 0;
+    private long mLastFrameTimeNs = 0;
+    // Smoothed interval between the frames the camera actually delivers.
+    private long mAverageFrameIntervalNs = 0;
+    // Weight of a new interval in mAverageFrameIntervalNs, as 1 / FRAME_INTERVAL_SMOOTHING.
+    private static final int FRAME_INTERVAL_SMOOTHING = 8;
+
     CaptureCapability mCurrentCapability = null;
     private static final String TAG = "VideoCapture";
 
@@ -67,6 +99,31 @@ public class VideoCapture implements PreviewCallback, OnFrameAvailableListener {
         mNativeVideoCaptureDeviceAndroid = nativeVideoCaptureDeviceAndroid;
     }
 
+    /**
+     * Sets how many preview buffers are cycled between the camera and native. More buffers let
+     * native fall further behind before the camera has to drop frames. Takes effect on the
+     * next allocate().
+     */
+    public void setNumCaptureBuffers(int numCaptureBuffers) {
+        mNumCaptureBuffers = Math.max(1, numCaptureBuffers);
+    }
+
+    /**
+     * @return The number of frames handed to native since capture started.
+     */
+    public long getDeliveredFrameCount() {
+        return mDeliveredFrameCount;
+    }
+
+    /**
+     * @return The number of frames estimated to be lost since capture started, because no
+     *         preview buffer was free when the camera produced them or because they had an
+     *         unexpected size.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
     // Returns true on success, false otherwise.
     @CalledByNative
     public boolean allocate(int width, int height, int frameRate) {
@@ -78,7 +135,7 @@ public class VideoCapture implements PreviewCallback, OnFrameAvailableListener {
             Camera.getCameraInfo(mId, camera_info);
             mCameraOrientation = camera_info.orientation;
             mCameraFacing = camera_info.facing;
-            mDeviceOrientation = getDeviceOrientation();
+            updateFrameTransform(getDeviceOrientation());
             Log.d(TAG, "allocate: device orientation=" + mDeviceOrientation +
                   ", camera orientation=" + mCameraOrientation +
                   ", facing=" + mCameraFacing);
@@ -172,7 +229,7 @@ public class VideoCapture implements PreviewCallback, OnFrameAvailableListener {
 
             int bufSize = matchedWidth * matchedHeight *
                           ImageFormat.getBitsPerPixel(mPixelFormat) / 8;
-            for (int i = 0; i < NUM_CAPTURE_BUFFERS; i++) {
+            for (int i = 0; i < mNumCaptureBuffers; i++) {
                 byte[] buffer = new byte[bufSize];
                 mCamera.addCallbackBuffer(buffer);
             }
@@ -213,9 +270,14 @@ public class VideoCapture implements PreviewCallback, OnFrameAvailableListener {
                 return 0;
             }
             mIsRunning = true;
+            mDeliveredFrameCount = 0;
+            mDroppedFrameCount = 0;
+            mLastFrameTimeNs = 0;
+            mAverageFrameIntervalNs = 0;
         } finally {
             mPreviewBufferLock.unlock();
         }
+        startRotationListener();
         mCamera.setPreviewCallbackWithBuffer(this);
         mCamera.startPreview();
         return 0;
@@ -238,6 +300,7 @@ public class VideoCapture implements PreviewCallback, OnFrameAvailableListener {
             mPreviewBufferLock.unlock();
         }
 
+        stopRotationListener();
         mCamera.stopPreview();
         mCamera.setPreviewCallbackWithBuffer(null);
         return 0;
@@ -269,28 +332,17 @@ public class VideoCapture implements PreviewCallback, OnFrameAvailableListener {
             if (!mIsRunning) {
                 return;
             }
+            countDroppedFrames();
             if (data.length == mExpectedFrameSize) {
-                int rotation = getDeviceOrientation();
-                if (rotation != mDeviceOrientation) {
-                    mDeviceOrientation = rotation;
-                    Log.d(TAG,
-                          "onPreviewFrame: device orientation=" +
-                          mDeviceOrientation + ", camera orientation=" +
-                          mCameraOrientation);
-                }
-                boolean flipVertical = false;
-                boolean flipHorizontal = false;
-                if (mCameraFacing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-                    rotation = (mCameraOrientation + rotation) % 360;
-                    rotation = (360 - rotation) % 360;
-                    flipHorizontal = (rotation == 180 || rotation == 0);
-                    flipVertical = !flipHorizontal;
-                } else {
-                    rotation = (mCameraOrientation - rotation + 360) % 360;
-                }
+                int transform = mFrameTransform;
                 nativeOnFrameAvailable(mNativeVideoCaptureDeviceAndroid,
                         data, mExpectedFrameSize,
-                        rotation, flipVertical, flipHorizontal);
+                        transform & FRAME_ROTATION_MASK,
+                        (transform & FRAME_FLIP_VERTICAL) != 0,
+                        (transform & FRAME_FLIP_HORIZONTAL) != 0);
+                mDeliveredFrameCount++;
+            } else {
+                mDroppedFrameCount++;
             }
         } finally {
             mPreviewBufferLock.unlock();
@@ -300,6 +352,125 @@ public class VideoCapture implements PreviewCallback, OnFrameAvailableListener {
         }
     }
 
+    // The camera silently skips frames while all the preview buffers are held by native, so
+    // estimate them from the gaps between frames, relative to the measured frame interval.
+    // The configured frame rate is only a range, and the camera lowers it in dim light.
+    private void countDroppedFrames() {
+        long now = System.nanoTime();
+        long last = mLastFrameTimeNs;
+        mLastFrameTimeNs = now;
+        if (last == 0) return;
+        long intervalNs = now - last;
+        if (mAverageFrameIntervalNs <= 0) {
+            mAverageFrameIntervalNs = intervalNs;
+            return;
+        }
+        // Anything shorter than one and a half frames is jitter, not a missing frame.
+        long missed = (intervalNs + mAverageFrameIntervalNs / 2) / mAverageFrameIntervalNs - 1;
+        if (missed > 0) {
+            mDroppedFrameCount += missed;
+            // Only the spacing of the frames the gap stands for feeds the average.
+            intervalNs /= missed + 1;
+        }
+        mAverageFrameIntervalNs +=
+                (intervalNs - mAverageFrameIntervalNs) / FRAME_INTERVAL_SMOOTHING;
+    }
+
+    // Recomputes the transform passed along with every frame for the given device orientation.
+    private void updateFrameTransform(int deviceOrientation) {
+        mDeviceOrientation = deviceOrientation;
+        int rotation = deviceOrientation;
+        boolean flipVertical = false;
+        boolean flipHorizontal = false;
+        if (mCameraFacing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            rotation = (mCameraOrientation + rotation) % 360;
+            rotation = (360 - rotation) % 360;
+            flipHorizontal = (rotation == 180 || rotation == 0);
+            flipVertical = !flipHorizontal;
+        } else {
+            rotation = (mCameraOrientation - rotation + 360) % 360;
+        }
+        mFrameTransform = rotation
+                | (flipVertical ? FRAME_FLIP_VERTICAL : 0)
+                | (flipHorizontal ? FRAME_FLIP_HORIZONTAL : 0);
+    }
+
+    // Recomputes the frame transform if the display rotation has changed.
+    private void refreshFrameTransform() {
+        int rotation = getDeviceOrientation();
+        if (rotation == mDeviceOrientation) return;
+        updateFrameTransform(rotation);
+        Log.d(TAG, "refreshFrameTransform: device orientation=" + mDeviceOrientation +
+              ", camera orientation=" + mCameraOrientation);
+    }
+
+    // Refreshes the frame transform when the display rotates, instead of querying the display
+    // rotation for every frame.
+    private void startRotationListener() {
+        if (mContext == null) return;
+        updateFrameTransform(getDeviceOrientation());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            startDisplayListener();
+            return;
+        }
+        // The configuration changes after any 90 degree rotation, however long the window
+        // manager takes to follow the device. A 180 degree flip keeps the configuration, so
+        // the orientation sensor has to catch that.
+        if (mConfigurationReceiver == null) {
+            mConfigurationReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    refreshFrameTransform();
+                }
+            };
+            mOrientationListener = new OrientationEventListener(mContext) {
+                @Override
+                public void onOrientationChanged(int orientation) {
+                    if (orientation != ORIENTATION_UNKNOWN) refreshFrameTransform();
+                }
+            };
+        }
+        mContext.registerReceiver(mConfigurationReceiver,
+                new IntentFilter(Intent.ACTION_CONFIGURATION_CHANGED));
+        mOrientationListener.enable();
+    }
+
+    private void startDisplayListener() {
+        if (mDisplayListener == null) {
+            mDisplayListener = new DisplayManager.DisplayListener() {
+                @Override
+                public void onDisplayAdded(int displayId) { }
+
+                @Override
+                public void onDisplayRemoved(int displayId) { }
+
+                @Override
+                public void onDisplayChanged(int displayId) {
+                    refreshFrameTransform();
+                }
+            };
+        }
+        DisplayManager displayManager =
+                (DisplayManager) mContext.getSystemService(Context.DISPLAY_SERVICE);
+        // Capture is started from a native thread without a looper.
+        displayManager.registerDisplayListener((DisplayManager.DisplayListener) mDisplayListener,
+                new Handler(Looper.getMainLooper()));
+    }
+
+    private void stopRotationListener() {
+        if (mContext == null) return;
+        if (mDisplayListener != null) {
+            DisplayManager displayManager =
+                    (DisplayManager) mContext.getSystemService(Context.DISPLAY_SERVICE);
+            displayManager.unregisterDisplayListener(
+                    (DisplayManager.DisplayListener) mDisplayListener);
+        }
+        if (mConfigurationReceiver != null) {
+            mContext.unregisterReceiver(mConfigurationReceiver);
+            mOrientationListener.disable();
+        }
+    }
+
     // TODO(wjia): investigate whether reading from texture could give better
     // performance and frame rate.
     @Override
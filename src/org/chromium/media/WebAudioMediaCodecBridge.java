@@ -13,18 +13,109 @@ import android.media.MediaFormat;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import android.os.ParcelFileDescriptor;
 
 import org.chromium.base.CalledByNative;
+import org.chromium.base.CpuFeatures;
 import org.chromium.base.JNINamespace;
 
+/**
+ * Decodes WebAudio files with MediaCodec.
+ *
+ * decodeAudioFile() is called by native on its own thread for every decodeAudioData() job and
+ * returns once the file is decoded. Up to one job per core runs at a time; each job feeds the
+ * codec from a pooled thread while the calling thread drains the decoded output, and the output
+ * is gathered into chunks of OUTPUT_CHUNK_BYTES before it is handed to native.
+ */
 @JNINamespace("media")
 class WebAudioMediaCodecBridge {
     private static final boolean DEBUG = true;
     static final String LOG_TAG = "WebAudioMediaCodec";
-    // TODO(rtoy): What is the correct timeout value for reading
-    // from a file in memory?
-    static final long TIMEOUT_MICROSECONDS = 500;
+    // Both stages wait for the codec with a timeout that starts short, so that data keeps
+    // flowing while the codec is busy, and doubles while the codec has nothing for them.
+    static final long MIN_TIMEOUT_MICROSECONDS = 500;
+    static final long MAX_TIMEOUT_MICROSECONDS = 10000;
+    // Decoded output is handed to native in chunks of at least this size, except the last one.
+    private static final int OUTPUT_CHUNK_BYTES = 64 * 1024;
+
+    /**
+     * Bounds the number of concurrent decodes and runs their input stages.
+     */
+    private static class DecodeService {
+        static final int MAX_CONCURRENT_DECODES = Math.max(1, CpuFeatures.getCount());
+        static final Semaphore sDecodeSlots = new Semaphore(MAX_CONCURRENT_DECODES, true);
+        static final ExecutorService sInputExecutor = Executors.newFixedThreadPool(
+                MAX_CONCURRENT_DECODES, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "WebAudioDecoderInput");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * The input stage of a decode: reads samples from the extractor and queues them to the
+     * codec until the end of the stream, or until the output stage gives up.
+     */
+    private static class InputFeeder implements Runnable {
+        private final MediaExtractor mExtractor;
+        private final MediaCodec mCodec;
+        private volatile boolean mAborted = false;
+
+        InputFeeder(MediaExtractor extractor, MediaCodec codec) {
+            mExtractor = extractor;
+            mCodec = codec;
+        }
+
+        void abort() {
+            mAborted = true;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer[] codecInputBuffers = mCodec.getInputBuffers();
+            long timeoutMicroseconds = MIN_TIMEOUT_MICROSECONDS;
+            while (!mAborted) {
+                int inputBufIndex = mCodec.dequeueInputBuffer(timeoutMicroseconds);
+                if (inputBufIndex < 0) {
+                    timeoutMicroseconds = Math.min(timeoutMicroseconds * 2,
+                            MAX_TIMEOUT_MICROSECONDS);
+                    continue;
+                }
+                timeoutMicroseconds = MIN_TIMEOUT_MICROSECONDS;
+
+                ByteBuffer dstBuf = codecInputBuffers[inputBufIndex];
+                int sampleSize = mExtractor.readSampleData(dstBuf, 0);
+                long presentationTimeMicroSec = 0;
+                boolean sawInputEOS = false;
+
+                if (sampleSize < 0) {
+                    sawInputEOS = true;
+                    sampleSize = 0;
+                } else {
+                    presentationTimeMicroSec = mExtractor.getSampleTime();
+                }
+
+                mCodec.queueInputBuffer(inputBufIndex,
+                                        0, /* offset */
+                                        sampleSize,
+                                        presentationTimeMicroSec,
+                                        sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+
+                if (sawInputEOS) return;
+                mExtractor.advance();
+            }
+        }
+    }
+
     @CalledByNative
     private static boolean decodeAudioFile(Context ctx,
                                            int nativeMediaCodecBridge,
@@ -34,6 +125,17 @@ class WebAudioMediaCodecBridge {
         if (dataSize < 0 || dataSize > 0x7fffffff)
             return false;
 
+        DecodeService.sDecodeSlots.acquireUninterruptibly();
+        try {
+            return decodeAudioFileInSlot(nativeMediaCodecBridge, inputFD, dataSize);
+        } finally {
+            DecodeService.sDecodeSlots.release();
+        }
+    }
+
+    private static boolean decodeAudioFileInSlot(int nativeMediaCodecBridge,
+                                                 int inputFD,
+                                                 long dataSize) {
         MediaExtractor extractor = new MediaExtractor();
 
         ParcelFileDescriptor encodedFD;
@@ -84,54 +186,66 @@ class WebAudioMediaCodecBridge {
         codec.configure(format, null /* surface */, null /* crypto */, 0 /* flags */);
         codec.start();
 
-        ByteBuffer[] codecInputBuffers = codec.getInputBuffers();
-        ByteBuffer[] codecOutputBuffers = codec.getOutputBuffers();
-
         // A track must be selected and will be used to read samples.
         extractor.selectTrack(0);
 
-        boolean sawInputEOS = false;
-        boolean sawOutputEOS = false;
+        InputFeeder feeder = new InputFeeder(extractor, codec);
+        Future<?> input = DecodeService.sInputExecutor.submit(feeder);
+        boolean success = false;
+        try {
+            success = drainOutput(nativeMediaCodecBridge, codec, input);
+        } finally {
+            feeder.abort();
+            try {
+                input.get();
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Feeding the decoder failed", e.getCause());
+                success = false;
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "Interrupted while waiting for the decoder input", e);
+            }
 
-        // Keep processing until the output is done.
-        while (!sawOutputEOS) {
-            if (!sawInputEOS) {
-                // Input side
-                int inputBufIndex = codec.dequeueInputBuffer(TIMEOUT_MICROSECONDS);
-
-                if (inputBufIndex >= 0) {
-                    ByteBuffer dstBuf = codecInputBuffers[inputBufIndex];
-                    int sampleSize = extractor.readSampleData(dstBuf, 0);
-                    long presentationTimeMicroSec = 0;
-
-                    if (sampleSize < 0) {
-                        sawInputEOS = true;
-                        sampleSize = 0;
-                    } else {
-                        presentationTimeMicroSec = extractor.getSampleTime();
-                    }
+            encodedFD.detachFd();
 
-                    codec.queueInputBuffer(inputBufIndex,
-                                           0, /* offset */
-                                           sampleSize,
-                                           presentationTimeMicroSec,
-                                           sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+            codec.stop();
+            codec.release();
+            extractor.release();
+        }
 
-                    if (!sawInputEOS) {
-                        extractor.advance();
-                    }
-                }
-            }
+        return success;
+    }
+
+    /**
+     * The output stage of a decode. Runs on the calling thread, which is the only one that calls
+     * into native.
+     * @return false if the input stage failed before the end of the stream.
+     */
+    private static boolean drainOutput(int nativeMediaCodecBridge, MediaCodec codec,
+                                       Future<?> input) {
+        ByteBuffer[] codecOutputBuffers = codec.getOutputBuffers();
+        MediaCodec.BufferInfo info = new BufferInfo();
+        ByteBuffer chunk = ByteBuffer.allocateDirect(OUTPUT_CHUNK_BYTES);
+        long timeoutMicroseconds = MIN_TIMEOUT_MICROSECONDS;
+        boolean sawOutputEOS = false;
 
-            // Output side
-            MediaCodec.BufferInfo info = new BufferInfo();
-            final int outputBufIndex = codec.dequeueOutputBuffer(info, TIMEOUT_MICROSECONDS);
+        // Keep processing until the output is done.
+        while (!sawOutputEOS) {
+            final int outputBufIndex = codec.dequeueOutputBuffer(info, timeoutMicroseconds);
 
             if (outputBufIndex >= 0) {
+                timeoutMicroseconds = MIN_TIMEOUT_MICROSECONDS;
                 ByteBuffer buf = codecOutputBuffers[outputBufIndex];
 
                 if (info.size > 0) {
-                    nativeOnChunkDecoded(nativeMediaCodecBridge, buf, info.size);
+                    if (info.size > chunk.remaining()) {
+                        flushChunk(nativeMediaCodecBridge, chunk);
+                        if (info.size > chunk.capacity()) {
+                            chunk = ByteBuffer.allocateDirect(info.size);
+                        }
+                    }
+                    buf.limit(info.offset + info.size);
+                    buf.position(info.offset);
+                    chunk.put(buf);
                 }
 
                 buf.clear();
@@ -142,16 +256,33 @@ class WebAudioMediaCodecBridge {
                 }
             } else if (outputBufIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 codecOutputBuffers = codec.getOutputBuffers();
+            } else if (outputBufIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                // The input stage stops early only if it failed, in which case the end of
+                // the stream never comes.
+                if (input.isDone() && isFailed(input)) return false;
+                timeoutMicroseconds = Math.min(timeoutMicroseconds * 2,
+                        MAX_TIMEOUT_MICROSECONDS);
             }
         }
 
-        encodedFD.detachFd();
+        flushChunk(nativeMediaCodecBridge, chunk);
+        return true;
+    }
 
-        codec.stop();
-        codec.release();
-        codec = null;
+    private static boolean isFailed(Future<?> input) {
+        try {
+            input.get();
+            return false;
+        } catch (Exception e) {
+            return true;
+        }
+    }
 
-        return true;
+    private static void flushChunk(int nativeMediaCodecBridge, ByteBuffer chunk) {
+        if (chunk.position() > 0) {
+            nativeOnChunkDecoded(nativeMediaCodecBridge, chunk, chunk.position());
+        }
+        chunk.clear();
     }
 
     private static native void nativeOnChunkDecoded(
@@ -5,6 +5,7 @@
 package org.chromium.net;
 
 import android.util.Log;
+import android.util.LruCache;
 
 import org.chromium.net.CertVerifyResultAndroid;
 
@@ -12,6 +13,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateExpiredException;
@@ -19,7 +21,11 @@ import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
@@ -52,15 +58,85 @@ public class X509Util {
     private static KeyStore sTestKeyStore;
 
     /**
-     * Lock object used to synchronize all calls that modify or depend on the trust managers.
+     * Lock object used to synchronize the initialization of the trust managers and the
+     * certificate factory.
      */
     private static final Object sLock = new Object();
+    private static volatile boolean sInitialized = false;
+
+    /**
+     * Guards the trust managers after initialization. Verifications only read them and can run
+     * in parallel; changes to the test key store take the write lock.
+     */
+    private static final ReadWriteLock sTrustManagerLock = new ReentrantReadWriteLock();
+
+    private static final int MAX_CACHED_CERTIFICATES = 128;
+    private static final int MAX_CACHED_VERIFICATIONS = 64;
+
+    /**
+     * Wraps a byte array so it can be used as a hash key, comparing by content.
+     */
+    private static class ByteArrayKey {
+        private final byte[] mBytes;
+        private final int mHashCode;
+
+        ByteArrayKey(byte[] bytes) {
+            mBytes = bytes;
+            mHashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ByteArrayKey
+                    && Arrays.equals(mBytes, ((ByteArrayKey) other).mBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    /**
+     * The outcome of the trust manager check for a chain, and the time range during which every
+     * certificate of the chain is valid. Outside that range the chain must be verified again.
+     */
+    private static class CachedVerification {
+        final int mResult;
+        final long mNotBeforeMs;
+        final long mNotAfterMs;
+
+        CachedVerification(int result, long notBeforeMs, long notAfterMs) {
+            mResult = result;
+            mNotBeforeMs = notBeforeMs;
+            mNotAfterMs = notAfterMs;
+        }
+
+        boolean isValidAt(long timeMs) {
+            return timeMs >= mNotBeforeMs && timeMs <= mNotAfterMs;
+        }
+    }
+
+    /**
+     * Parsed certificates keyed by their DER bytes, so chains sharing intermediates parse them
+     * only once. LruCache is thread-safe.
+     */
+    private static final LruCache<ByteArrayKey, X509Certificate> sCertificateCache =
+            new LruCache<ByteArrayKey, X509Certificate>(MAX_CACHED_CERTIFICATES);
+
+    /**
+     * Verification results keyed by a SHA-256 digest of the chain and the auth type. Cleared
+     * whenever the test trust store changes.
+     */
+    private static final LruCache<ByteArrayKey, CachedVerification> sVerificationCache =
+            new LruCache<ByteArrayKey, CachedVerification>(MAX_CACHED_VERIFICATIONS);
 
     /**
      * Ensures that the trust managers and certificate factory are initialized.
      */
     private static void ensureInitialized() throws CertificateException,
             KeyStoreException, NoSuchAlgorithmException {
+        if (sInitialized) return;
         synchronized(sLock) {
             if (sCertificateFactory == null) {
                 sCertificateFactory = CertificateFactory.getInstance("X.509");
@@ -77,6 +153,7 @@ public class X509Util {
             if (sTestTrustManager == null) {
                 sTestTrustManager = X509Util.createTrustManager(sTestKeyStore);
             }
+            sInitialized = true;
         }
     }
 
@@ -105,6 +182,7 @@ public class X509Util {
     private static void reloadTestTrustManager() throws KeyStoreException,
             NoSuchAlgorithmException {
         sTestTrustManager = X509Util.createTrustManager(sTestKeyStore);
+        sVerificationCache.evictAll();
     }
 
     /**
@@ -121,22 +199,62 @@ public class X509Util {
             KeyStoreException, NoSuchAlgorithmException {
         ensureInitialized();
         X509Certificate rootCert = createCertificateFromBytes(rootCertBytes);
-        synchronized (sLock) {
+        sTrustManagerLock.writeLock().lock();
+        try {
             sTestKeyStore.setCertificateEntry(
                     "root_cert_" + Integer.toString(sTestKeyStore.size()), rootCert);
             reloadTestTrustManager();
+        } finally {
+            sTrustManagerLock.writeLock().unlock();
         }
     }
 
     public static void clearTestRootCertificates() throws NoSuchAlgorithmException,
             CertificateException, KeyStoreException {
         ensureInitialized();
-        synchronized (sLock) {
-            try {
-                sTestKeyStore.load(null);
-                reloadTestTrustManager();
-            } catch (IOException e) {}  // No IO operation is attempted.
+        sTrustManagerLock.writeLock().lock();
+        try {
+            sTestKeyStore.load(null);
+            reloadTestTrustManager();
+        } catch (IOException e) {  // No IO operation is attempted.
+        } finally {
+            sTrustManagerLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the parsed certificate for the given DER bytes, reusing a previously parsed
+     * instance when the same certificate was seen before.
+     */
+    private static X509Certificate getCachedCertificate(byte[] derBytes) throws
+            CertificateException, KeyStoreException, NoSuchAlgorithmException {
+        ByteArrayKey key = new ByteArrayKey(derBytes);
+        X509Certificate certificate = sCertificateCache.get(key);
+        if (certificate == null) {
+            certificate = createCertificateFromBytes(derBytes);
+            sCertificateCache.put(key, certificate);
         }
+        return certificate;
+    }
+
+    /**
+     * Computes the verification cache key of a chain: a SHA-256 digest of every certificate,
+     * each prefixed with its length, followed by the auth type.
+     */
+    private static ByteArrayKey getVerificationKey(byte[][] certChain, String authType)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (byte[] certBytes : certChain) {
+            int length = certBytes.length;
+            digest.update(new byte[] {
+                    (byte) (length >>> 24), (byte) (length >>> 16),
+                    (byte) (length >>> 8), (byte) length });
+            digest.update(certBytes);
+        }
+        if (authType != null) {
+            digest.update(authType.getBytes());
+        }
+        return new ByteArrayKey(digest.digest());
     }
 
     /**
@@ -187,10 +305,18 @@ public class X509Util {
             return CertVerifyResultAndroid.VERIFY_FAILED;
         }
 
+        // Most connections go to a small set of hosts, so the trust decision for a chain is
+        // reused for as long as every certificate of the chain is valid.
+        ByteArrayKey verificationKey = getVerificationKey(certChain, authType);
+        CachedVerification cached = sVerificationCache.get(verificationKey);
+        if (cached != null && cached.isValidAt(System.currentTimeMillis())) {
+            return cached.mResult;
+        }
+
         X509Certificate[] serverCertificates = new X509Certificate[certChain.length];
         try {
             for (int i = 0; i < certChain.length; ++i) {
-                serverCertificates[i] = createCertificateFromBytes(certChain[i]);
+                serverCertificates[i] = getCachedCertificate(certChain[i]);
             }
         } catch (CertificateException e) {
             return CertVerifyResultAndroid.VERIFY_UNABLE_TO_PARSE;
@@ -212,22 +338,49 @@ public class X509Util {
             return CertVerifyResultAndroid.VERIFY_FAILED;
         }
 
-        synchronized (sLock) {
+        int result;
+        sTrustManagerLock.readLock().lock();
+        try {
+            result = checkServerTrusted(serverCertificates, authType);
+            // Only cache while holding the read lock, so a result computed against a test trust
+            // store that is being replaced cannot outlive the cache eviction.
+            sVerificationCache.put(verificationKey, createCachedVerification(result,
+                    serverCertificates));
+        } finally {
+            sTrustManagerLock.readLock().unlock();
+        }
+        return result;
+    }
+
+    private static int checkServerTrusted(X509Certificate[] serverCertificates,
+            String authType) {
+        try {
+            sDefaultTrustManager.checkServerTrusted(serverCertificates, authType);
+            return CertVerifyResultAndroid.VERIFY_OK;
+        } catch (CertificateException eDefaultManager) {
             try {
-                sDefaultTrustManager.checkServerTrusted(serverCertificates, authType);
+                sTestTrustManager.checkServerTrusted(serverCertificates, authType);
                 return CertVerifyResultAndroid.VERIFY_OK;
-            } catch (CertificateException eDefaultManager) {
-                try {
-                    sTestTrustManager.checkServerTrusted(serverCertificates, authType);
-                    return CertVerifyResultAndroid.VERIFY_OK;
-                } catch (CertificateException eTestManager) {
-                    // Neither of the trust managers confirms the validity of the certificate chain,
-                    // log the error message returned by the system trust manager.
-                    Log.i(TAG, "Failed to validate the certificate chain, error: " +
-                              eDefaultManager.getMessage());
-                    return CertVerifyResultAndroid.VERIFY_NO_TRUSTED_ROOT;
-                }
+            } catch (CertificateException eTestManager) {
+                // Neither of the trust managers confirms the validity of the certificate chain,
+                // log the error message returned by the system trust manager.
+                Log.i(TAG, "Failed to validate the certificate chain, error: " +
+                          eDefaultManager.getMessage());
+                return CertVerifyResultAndroid.VERIFY_NO_TRUSTED_ROOT;
             }
         }
     }
+
+    private static CachedVerification createCachedVerification(int result,
+            X509Certificate[] serverCertificates) {
+        long notBeforeMs = Long.MIN_VALUE;
+        long notAfterMs = Long.MAX_VALUE;
+        for (X509Certificate certificate : serverCertificates) {
+            Date notBefore = certificate.getNotBefore();
+            Date notAfter = certificate.getNotAfter();
+            if (notBefore != null) notBeforeMs = Math.max(notBeforeMs, notBefore.getTime());
+            if (notAfter != null) notAfterMs = Math.min(notAfterMs, notAfter.getTime());
+        }
+        return new CachedVerification(result, notBeforeMs, notAfterMs);
+    }
 }